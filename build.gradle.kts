@@ -36,6 +36,10 @@ dependencies {
 	compileOnly("org.ow2.asm:asm:9.10.1")
 	compileOnly("org.ow2.asm:asm-tree:9.10.1")
 
+	// use same version as in jadx-smali-input
+	compileOnly("com.android.tools.smali:smali-dexlib2:3.0.9")
+	compileOnly("com.android.tools.smali:smali:3.0.9")
+
 	implementation("org.apktool:apktool-lib:3.0.3") {
 		// exclude iBotPeaches fork, use provided version of jadx
 		// Known Issues are https://github.com/iBotPeaches/Apktool/issues/3767 and https://github.com/iBotPeaches/Apktool/issues/3943
@@ -3,21 +3,31 @@ package jadx.plugins.apkspy;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,13 +43,26 @@ import jadx.plugins.apkspy.model.ChangeCache;
 import jadx.plugins.apkspy.model.ClassBreakdown;
 import jadx.plugins.apkspy.model.SmaliBreakdown;
 import jadx.plugins.apkspy.model.SmaliMethod;
+import jadx.plugins.apkspy.model.SmaliSplicer;
 import jadx.plugins.apkspy.rename.smali.SmaliRemapper;
+import jadx.plugins.apkspy.utils.SynchronizedOutputStream;
 import jadx.plugins.apkspy.utils.Util;
 
 public class ApkSpy {
 
 	private static final Logger LOG = LoggerFactory.getLogger(ApkSpy.class);
 
+	/**
+	 * Same as minSdkVersion of the Gradle project template
+	 */
+	private static final int MIN_API_LEVEL = 23;
+
+	/**
+	 * Only the smali of the original apk is merged, its resources are kept undecoded by both rebuild
+	 * modes
+	 */
+	static final boolean SKIP_ORIGINAL_RESOURCES = true;
+
 	private static String getClasspath(String... libs) {
 		return Arrays.stream(libs)
 				.map(lib -> new File(lib).isAbsolute() ? lib : String.join(File.separator, "..", "libs", lib))
@@ -69,8 +92,7 @@ public class ApkSpy {
 		return null;
 	}
 
-	public static boolean lint(JadxDecompiler decompiler, Path baseTempDir, String className, ClassBreakdown content, String sdkPath,
-			String jdkLocation,
+	public static boolean lint(JadxDecompiler decompiler, Path baseTempDir, String className, ClassBreakdown content, ApkSpyOptions options,
 			OutputStream out)
 			throws IOException, InterruptedException {
 		String apk = decompiler.getArgs().getInputFiles().get(0).toString();
@@ -79,6 +101,50 @@ public class ApkSpy {
 		Path root = baseTempDir.resolve("lint_" + System.currentTimeMillis());
 		Files.createDirectories(root);
 
+		// create stub jar
+		Path stubPath = root.resolve(Paths.get("libs", "stub.jar"));
+		Files.createDirectories(root.resolve("libs"));
+		Map<String, ClassBreakdown> classes = Collections.singletonMap(className, content);
+
+		try {
+			JarGenerator.generateStubJar(modifyingApk, stubPath.toFile(), out, classes, decompiler, root, getStubCacheDir(baseTempDir),
+					options);
+		} catch (IOException ex) {
+			out.write(("Failed to generate stub jar: " + ex.getMessage()).getBytes(StandardCharsets.UTF_8));
+			LOG.error("Failed to generate stub jar: ", ex);
+		}
+
+		ClassNode generatedR = findGeneratedRFile(decompiler.getRoot());
+		String targetVersionDir = findLatestAndroidJars(options.getAndroidSdkPath());
+
+		out.write("Started compile...\n".getBytes(StandardCharsets.UTF_8));
+		boolean success;
+		if (options.isInProcessCompiler() && InMemoryCompiler.isAvailable()) {
+			if (targetVersionDir == null) {
+				out.write(("Android SDK platform not found in " + options.getAndroidSdkPath() + "\n").getBytes(StandardCharsets.UTF_8));
+				success = false;
+			} else {
+				Map<String, String> sources = new LinkedHashMap<>();
+				sources.put(className, content.toString());
+				if (generatedR != null) {
+					sources.put(generatedR.getFullName(), generatedR.getCode().getCodeStr());
+				}
+				List<File> classpath = Arrays.asList(new File(targetVersionDir, "android.jar"), stubPath.toFile(),
+						new File(new File(targetVersionDir, "optional"), "org.apache.http.legacy.jar"));
+				success = InMemoryCompiler.compile(sources, classpath, new HashMap<>(), out);
+			}
+		} else {
+			success = lintExternal(root, className, content, generatedR, targetVersionDir, options.getJdkLocation(), out);
+		}
+
+		Util.attemptDelete(root.toFile());
+
+		return success;
+	}
+
+	private static boolean lintExternal(Path root, String className, ClassBreakdown content, ClassNode generatedR, String targetVersionDir,
+			String jdkLocation, OutputStream out)
+			throws IOException, InterruptedException {
 		// create current source file
 		String pkg = className.substring(0, className.lastIndexOf('.'));
 		Path folder = root.resolve(Paths.get("src", pkg.replace('.', File.separatorChar)));
@@ -90,7 +156,6 @@ public class ApkSpy {
 
 		// add R file if generated
 		Path rPath = null;
-		ClassNode generatedR = findGeneratedRFile(decompiler.getRoot());
 		if (generatedR != null) {
 			Path rFolder = root.resolve(Paths.get("src", generatedR.getPackage().replace('.', File.separatorChar)));
 			if (!Files.isDirectory(rFolder)) {
@@ -101,18 +166,6 @@ public class ApkSpy {
 					generatedR.getCode().getCodeStr());
 		}
 
-		// create stub jar
-		Path stubPath = root.resolve(Paths.get("libs", "stub.jar"));
-		Files.createDirectories(root.resolve("libs"));
-		Map<String, ClassBreakdown> classes = Collections.singletonMap(className, content);
-
-		try {
-			JarGenerator.generateStubJar(modifyingApk, stubPath.toFile(), out, classes, decompiler, root);
-		} catch (IOException ex) {
-			out.write(("Failed to generate stub jar: " + ex.getMessage()).getBytes(StandardCharsets.UTF_8));
-			LOG.error("Failed to generate stub jar: ", ex);
-		}
-
 		Files.createDirectories(root.resolve("bin"));
 
 		// compile
@@ -127,8 +180,6 @@ public class ApkSpy {
 			}
 		}
 
-		out.write("Started compile...\n".getBytes(StandardCharsets.UTF_8));
-		String targetVersionDir = findLatestAndroidJars(sdkPath);
 		int code;
 		if (rPath == null) {
 			code = Util.system(root.resolve("src").toFile(), jdkLocation, out, javac == null ? "javac" : javac.toAbsolutePath().toString(),
@@ -146,10 +197,15 @@ public class ApkSpy {
 					".." + File.separator + "bin", className.replace('.', File.separatorChar) + ".java",
 					rPath.toAbsolutePath().toString());
 		}
+		return code == 0;
+	}
 
-		Util.attemptDelete(root.toFile());
+	static Path getStubCacheDir(Path baseTempDir) {
+		return baseTempDir.resolve("stub-cache");
+	}
 
-		return code == 0;
+	static Path getDecodedApkCacheDir(Path baseTempDir) {
+		return baseTempDir.resolve("apk-cache");
 	}
 
 	private static ClassNode findGeneratedRFile(RootNode root) {
@@ -164,7 +220,7 @@ public class ApkSpy {
 		return null;
 	}
 
-	public static boolean merge(JadxDecompiler decompiler, String outputLocation, Path baseTempDir, String sdkPath, String jdkLocation,
+	public static boolean merge(JadxDecompiler decompiler, String outputLocation, Path baseTempDir, ApkSpyOptions options,
 			String applicationId,
 			OutputStream out, boolean keepOnError, boolean cleanOnSuccess)
 			throws IOException, InterruptedException {
@@ -176,109 +232,57 @@ public class ApkSpy {
 
 		File modifyingApk = new File(apk);
 
-		Path projectRoot = root.resolve("project-tmp");
-		Files.createDirectories(projectRoot);
-
-		copyProjectTemplate(projectRoot.toFile());
-
-		Files.writeString(projectRoot.resolve("local.properties"),
-				"sdk.dir=" + sdkPath.replace("\\", "\\\\"));
-
-		Path gradleBuildPath = projectRoot.resolve(projectRoot.resolve(Paths.get("app", "build.gradle")));
-		String buildGradle = Files.readString(gradleBuildPath);
-		buildGradle = buildGradle.replace("$APPLICATION_ID", applicationId);
-
-		Files.writeString(gradleBuildPath, buildGradle);
-
-		Map<String, ClassBreakdown> classes = ChangeCache.getInstance().getChanges();
-		for (Map.Entry<String, ClassBreakdown> entry : classes.entrySet()) {
-			String className = entry.getKey();
-			ClassBreakdown content = entry.getValue();
-
-			Path completePath = projectRoot.resolve(Paths.get("app", "src", "main", "java",
-					className.substring(0, className.lastIndexOf('.')).replace(".", File.separator)));
-			Files.createDirectories(completePath);
-
-			Path newFile = completePath.resolve(className.substring(className.lastIndexOf('.') + 1) + ".java");
-			Files.writeString(newFile, content.toString());
-		}
-
-		// add R file if generated
-		ClassNode generatedR = findGeneratedRFile(decompiler.getRoot());
-		if (generatedR != null) {
-			Path rFolder =
-					projectRoot.resolve(Paths.get("app", "src", "main", "java", generatedR.getPackage().replace('.', File.separatorChar)));
-			if (!Files.isDirectory(rFolder)) {
-				Files.createDirectories(rFolder);
-			}
-			Files.writeString(
-					projectRoot.resolve(
-							Paths.get("app", "src", "main", "java", generatedR.getFullName().replace('.', File.separatorChar) + ".java")),
-					generatedR.getCode().getCodeStr());
-		}
-
-		Path stubPath = projectRoot.resolve(Paths.get("app", "libs", "stub.jar"));
-		Files.createDirectories(projectRoot.resolve(Paths.get("app", "libs")));
-		try {
-			JarGenerator.generateStubJar(modifyingApk, stubPath.toFile(), out, classes, decompiler, root);
-		} catch (IOException e) {
-			return false;
-		}
-		if (!Util.isWindows()) {
-			Runtime.getRuntime().exec("chmod +x " + projectRoot.toFile().getAbsolutePath() + "/gradlew").waitFor();
-		}
-
-		if (Util.system(projectRoot.toFile().getAbsoluteFile(), jdkLocation, out, projectRoot.toFile().getAbsoluteFile() + File.separator
-				+ (Util.isWindows() ? "gradlew.bat" : "gradlew"), "build") != 0) {
-			if (!keepOnError) {
-				Util.attemptDelete(projectRoot.toFile());
+		if (options.getBuildBackend() == ApkSpyOptions.BuildBackend.D8) {
+			if (options.getMergeBackend() != ApkSpyOptions.MergeBackend.DEX_PATCH) {
+				LOG.info("D8 build always patches dex files, merge backend {} is ignored", options.getMergeBackend());
+				out.write(("D8 build: merge backend " + options.getMergeBackend() + " is ignored, patching dex files\n")
+						.getBytes(StandardCharsets.UTF_8));
 			}
-			return false;
-		}
-
-		Path target = root.resolve("generated.apk");
-		Files.move(projectRoot.resolve(Paths.get("app", "build", "outputs", "apk", "debug", "app-debug.apk")),
-				target, StandardCopyOption.REPLACE_EXISTING);
-		if (cleanOnSuccess) {
-			Util.attemptDelete(projectRoot.toFile());
+			return mergeWithD8(decompiler, modifyingApk, outputLocation, root, baseTempDir, options, out, keepOnError, cleanOnSuccess);
 		}
 
+		Map<String, ClassBreakdown> classes = ChangeCache.getInstance().getChanges();
 		Path smaliDir = root.resolve("smali");
 		Files.createDirectories(smaliDir);
 
-		out.write("Apktool: Decode generated apk\n".getBytes(StandardCharsets.UTF_8));
+		// stages report progress concurrently
+		OutputStream log = new SynchronizedOutputStream(out);
+		ExecutorService executor = Executors.newCachedThreadPool(ApkSpy::newMergeThread);
+		final SmaliRemapper reverseRemapper;
 		try {
-			ApktoolWrapper.decode(target, new File(smaliDir.toFile(), "generated"), false);
-		} catch (AndrolibException e) {
-			LOG.error("Decoding intermediate apk failed: ", e);
-			out.write(("Decoding intermediate apk failed: " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
-			if (!keepOnError) {
-				Files.delete(target);
+			// decoding the original apk does not depend on the build of the changes, run both at the same time
+			CompletableFuture<SmaliRemapper> originalStage = options.getMergeBackend() == ApkSpyOptions.MergeBackend.APKTOOL
+					? submit(executor, () -> prepareOriginal(decompiler, modifyingApk, smaliDir, baseTempDir, options, log))
+					: CompletableFuture.completedFuture(null);
+			CompletableFuture<Path> buildStage = submit(executor,
+					() -> buildChanges(decompiler, modifyingApk, root, baseTempDir, options, applicationId, classes, log, keepOnError,
+							cleanOnSuccess));
+
+			if (options.getMergeBackend() == ApkSpyOptions.MergeBackend.DEX_PATCH) {
+				Path target = await(buildStage);
+				return target != null
+						&& patchDex(decompiler, modifyingApk, root, target, classes, outputLocation, log, keepOnError, cleanOnSuccess);
 			}
-			return false;
-		}
-		if (cleanOnSuccess) {
-			Files.delete(target);
-		}
 
-		out.write("Apktool: Decode original apk\n".getBytes(StandardCharsets.UTF_8));
-		File apktoolOriginalDir = new File(smaliDir.toFile(), "original");
-		try {
-			ApktoolWrapper.decode(modifyingApk.toPath(), apktoolOriginalDir, true);
-		} catch (AndrolibException e) {
-			LOG.error("Decoding original apk failed: ", e);
+			CompletableFuture<Boolean> decodeStage = buildStage.thenCompose(target -> target == null
+					? CompletableFuture.completedFuture(false)
+					: submit(executor, () -> decodeGenerated(target, smaliDir, log, keepOnError, cleanOnSuccess)));
+			// a broken original apk fails the merge without waiting for the build of the changes
+			originalStage.whenComplete((reverse, e) -> {
+				if (e != null) {
+					decodeStage.completeExceptionally(e);
+				}
+			});
+			if (!await(decodeStage)) {
+				originalStage.cancel(true);
+				return false;
+			}
+			reverseRemapper = await(originalStage);
+		} finally {
+			// interrupts stages still running after a failure
+			executor.shutdownNow();
 		}
 
-		// apply deobfuscation to smali (original apk)
-		File smaliOriginal = new File(apktoolOriginalDir, "backup_smali");
-		new File(apktoolOriginalDir, "smali").renameTo(smaliOriginal);
-		Path deobfuscatedSmaliDir = apktoolOriginalDir.toPath().resolve("smali");
-		Files.createDirectories(smaliDir);
-		final SmaliRemapper customRemapper = new SmaliRemapper(decompiler);
-		customRemapper.prepopulateNameCache();
-		customRemapper.remapSmaliFolder(smaliOriginal.toPath(),
-				deobfuscatedSmaliDir);
-
 		List<Path> smaliFolders = Files.list(smaliDir.resolve("generated"))
 				.filter(path -> Files.isDirectory(path) && path.getFileName().toString().startsWith("smali")).collect(Collectors.toList());
 		List<Path> destinationFolders = smaliFolders.stream()
@@ -296,11 +300,18 @@ public class ApkSpy {
 									.replace(File.separatorChar, '.').replace('$', '.');
 							if (classes.containsKey(classname)) {
 								LOG.info("Merging smali file: {}", path);
+								String relativePath = path.toAbsolutePath().toString()
+										.substring(smaliFolder.toAbsolutePath().toString().length());
+								String rawInternalName = null;
+								if (reverseRemapper != null) {
+									String internalName = relativePath.substring(1, relativePath.length() - ".smali".length())
+											.replace(File.separatorChar, '/');
+									rawInternalName = reverseRemapper.mapClassName(internalName);
+									relativePath = File.separator + rawInternalName.replace('/', File.separatorChar) + ".smali";
+								}
 								Path equivalent = null;
 								for (Path otherFolder : destinationFolders) {
-									Path test = Paths.get(otherFolder.toString(),
-											path.toAbsolutePath().toString()
-													.substring(smaliFolder.toAbsolutePath().toString().length()));
+									Path test = Paths.get(otherFolder.toString(), relativePath);
 									if (Files.isRegularFile(test)) {
 										equivalent = test;
 										break;
@@ -325,25 +336,29 @@ public class ApkSpy {
 										LOG.info("Originally changed methods: {}", relative.getChangedMethods().size());
 										LOG.info("Merging method count: {}", methods.size());
 
-										StringBuilder builder = new StringBuilder(originalContent);
-										for (SmaliMethod method : methods) {
-											SmaliBreakdown originalSmali = SmaliBreakdown.breakdown(builder.toString());
-											SmaliMethod equivalentMethod = originalSmali.getEquivalentMethod(method);
-
-											if (equivalentMethod != null) {
-												builder.delete(equivalentMethod.getStart(), equivalentMethod.getEnd());
-												builder.insert(equivalentMethod.getStart(), method.getContent());
+										if (reverseRemapper != null) {
+											List<SmaliMethod> remapped = new ArrayList<>(methods.size());
+											for (SmaliMethod method : methods) {
+												remapped.add(new SmaliMethod(method.getStart(), method.getEnd(),
+														reverseRemapper.remapContent(method.getContent(), rawInternalName)));
 											}
+											methods = remapped;
 										}
+										String merged = SmaliSplicer.splice(originalContent, methods);
 
-										Files.writeString(equivalent, builder.toString());
+										// replace instead of overwriting, the file may be linked to the decoded apk cache
+										Files.delete(equivalent);
+										Files.writeString(equivalent, merged);
 									}
 								} else {
-									equivalent = Paths.get(smaliFolder.toString().replace("generated", "original"),
-											path.toAbsolutePath().toString()
-													.substring(smaliFolder.toAbsolutePath().toString().length()));
+									equivalent = Paths.get(smaliFolder.toString().replace("generated", "original"), relativePath);
 									Files.createDirectories(equivalent.getParent());
-									Files.copy(path, equivalent, StandardCopyOption.REPLACE_EXISTING);
+									if (reverseRemapper != null) {
+										String content = reverseRemapper.remapContent(Files.readString(path), rawInternalName);
+										Files.writeString(equivalent, content);
+									} else {
+										Files.copy(path, equivalent, StandardCopyOption.REPLACE_EXISTING);
+									}
 								}
 							}
 						} catch (IOException e) {
@@ -362,6 +377,11 @@ public class ApkSpy {
 			// file might not exist, as we could delete temporary classes that we made in
 			// between compilations in the editor
 
+			if (reverseRemapper != null) {
+				// deletions use jadx names, the original smali keeps the names of the apk
+				String internalName = deletion.substring(0, deletion.length() - ".smali".length()).replace(File.separatorChar, '/');
+				deletion = reverseRemapper.mapClassName(internalName).replace('/', File.separatorChar) + ".smali";
+			}
 			for (Path path : destinationFolders) {
 				if (Files.deleteIfExists(Paths.get(path.toAbsolutePath().toString(),
 						deletion))) {
@@ -372,7 +392,11 @@ public class ApkSpy {
 
 		out.write("Apktool: Build modified apk\n".getBytes(StandardCharsets.UTF_8));
 		try {
-			ApktoolWrapper.build(smaliDir.resolve("original"), outputLocation);
+			if (options.isCodeOnlyRebuild()) {
+				ApktoolWrapper.buildCodeOnly(smaliDir.resolve("original"), modifyingApk.toPath(), outputLocation);
+			} else {
+				ApktoolWrapper.build(smaliDir.resolve("original"), outputLocation);
+			}
 		} catch (AndrolibException e) {
 			if (!keepOnError) {
 				Util.attemptDelete(root.toFile());
@@ -398,6 +422,299 @@ public class ApkSpy {
 		}
 	}
 
+	/**
+	 * Build the changed classes with a Gradle project
+	 *
+	 * @return the generated apk or null if the build failed
+	 */
+	@Nullable
+	private static Path buildChanges(JadxDecompiler decompiler, File modifyingApk, Path root, Path baseTempDir, ApkSpyOptions options,
+			String applicationId, Map<String, ClassBreakdown> classes, OutputStream out, boolean keepOnError, boolean cleanOnSuccess)
+			throws IOException, InterruptedException {
+		String sdkPath = options.getAndroidSdkPath();
+		String jdkLocation = options.getJdkLocation();
+
+		Path projectRoot = root.resolve("project-tmp");
+		Files.createDirectories(projectRoot);
+
+		copyProjectTemplate(projectRoot.toFile());
+
+		Files.writeString(projectRoot.resolve("local.properties"),
+				"sdk.dir=" + sdkPath.replace("\\", "\\\\"));
+
+		Path gradleBuildPath = projectRoot.resolve(projectRoot.resolve(Paths.get("app", "build.gradle")));
+		String buildGradle = Files.readString(gradleBuildPath);
+		buildGradle = buildGradle.replace("$APPLICATION_ID", applicationId);
+
+		Files.writeString(gradleBuildPath, buildGradle);
+
+		for (Map.Entry<String, ClassBreakdown> entry : classes.entrySet()) {
+			String className = entry.getKey();
+			ClassBreakdown content = entry.getValue();
+
+			Path completePath = projectRoot.resolve(Paths.get("app", "src", "main", "java",
+					className.substring(0, className.lastIndexOf('.')).replace(".", File.separator)));
+			Files.createDirectories(completePath);
+
+			Path newFile = completePath.resolve(className.substring(className.lastIndexOf('.') + 1) + ".java");
+			Files.writeString(newFile, content.toString());
+		}
+
+		// add R file if generated
+		ClassNode generatedR = findGeneratedRFile(decompiler.getRoot());
+		if (generatedR != null) {
+			Path rFolder =
+					projectRoot.resolve(Paths.get("app", "src", "main", "java", generatedR.getPackage().replace('.', File.separatorChar)));
+			if (!Files.isDirectory(rFolder)) {
+				Files.createDirectories(rFolder);
+			}
+			Files.writeString(
+					projectRoot.resolve(
+							Paths.get("app", "src", "main", "java", generatedR.getFullName().replace('.', File.separatorChar) + ".java")),
+					generatedR.getCode().getCodeStr());
+		}
+
+		Path stubPath = projectRoot.resolve(Paths.get("app", "libs", "stub.jar"));
+		Files.createDirectories(projectRoot.resolve(Paths.get("app", "libs")));
+		try {
+			JarGenerator.generateStubJar(modifyingApk, stubPath.toFile(), out, classes, decompiler, root, getStubCacheDir(baseTempDir),
+					options);
+		} catch (IOException e) {
+			return null;
+		}
+		if (!Util.isWindows()) {
+			Runtime.getRuntime().exec("chmod +x " + projectRoot.toFile().getAbsolutePath() + "/gradlew").waitFor();
+		}
+
+		if (Util.system(projectRoot.toFile().getAbsoluteFile(), jdkLocation, out, projectRoot.toFile().getAbsoluteFile() + File.separator
+				+ (Util.isWindows() ? "gradlew.bat" : "gradlew"), "build") != 0) {
+			if (!keepOnError) {
+				Util.attemptDelete(projectRoot.toFile());
+			}
+			return null;
+		}
+
+		Path target = root.resolve("generated.apk");
+		Files.move(projectRoot.resolve(Paths.get("app", "build", "outputs", "apk", "debug", "app-debug.apk")),
+				target, StandardCopyOption.REPLACE_EXISTING);
+		if (cleanOnSuccess) {
+			Util.attemptDelete(projectRoot.toFile());
+		}
+		return target;
+	}
+
+	private static boolean decodeGenerated(Path target, Path smaliDir, OutputStream out, boolean keepOnError, boolean cleanOnSuccess)
+			throws IOException {
+		out.write("Apktool: Decode generated apk\n".getBytes(StandardCharsets.UTF_8));
+		try {
+			ApktoolWrapper.decode(target, new File(smaliDir.toFile(), "generated"), false);
+		} catch (AndrolibException e) {
+			LOG.error("Decoding intermediate apk failed: ", e);
+			out.write(("Decoding intermediate apk failed: " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+			if (!keepOnError) {
+				Files.delete(target);
+			}
+			return false;
+		}
+		if (cleanOnSuccess) {
+			Files.delete(target);
+		}
+		return true;
+	}
+
+	/**
+	 * Decode the original apk and prepare its smali for merging
+	 *
+	 * @return remapper for merged code in targeted remap mode, otherwise null
+	 */
+	@Nullable
+	private static SmaliRemapper prepareOriginal(JadxDecompiler decompiler, File modifyingApk, Path smaliDir, Path baseTempDir,
+			ApkSpyOptions options, OutputStream out) throws IOException {
+		out.write("Apktool: Decode original apk\n".getBytes(StandardCharsets.UTF_8));
+		File apktoolOriginalDir = new File(smaliDir.toFile(), "original");
+		Path cachedApk = null;
+		try {
+			if (options.isCacheDecodedApk()) {
+				cachedApk = DecodedApkCache.decode(getDecodedApkCacheDir(baseTempDir), modifyingApk.toPath(), apktoolOriginalDir,
+						SKIP_ORIGINAL_RESOURCES);
+			} else {
+				ApktoolWrapper.decode(modifyingApk.toPath(), apktoolOriginalDir, SKIP_ORIGINAL_RESOURCES);
+			}
+		} catch (AndrolibException e) {
+			LOG.error("Decoding original apk failed: ", e);
+			out.write(("Decoding original apk failed: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+			throw new IOException("Decoding original apk failed", e);
+		}
+		if (Thread.currentThread().isInterrupted()) {
+			// build of the changes failed, skip remapping
+			throw new InterruptedIOException("Merge cancelled");
+		}
+
+		SmaliRemapper reverseRemapper;
+		if (options.isTargetedSmaliRemap()) {
+			// keep the original smali, only merged code is mapped back to the names of the apk
+			reverseRemapper = SmaliRemapperCache.get(decompiler, true);
+		} else {
+			reverseRemapper = null;
+			// apply deobfuscation to smali (original apk)
+			File smaliOriginal = new File(apktoolOriginalDir, "backup_smali");
+			new File(apktoolOriginalDir, "smali").renameTo(smaliOriginal);
+			Path deobfuscatedSmaliDir = apktoolOriginalDir.toPath().resolve("smali");
+			if (cachedApk != null) {
+				DecodedApkCache.linkRemappedSmali(getDecodedApkCacheDir(baseTempDir), cachedApk, decompiler,
+						options.getSmaliRemapThreads(), deobfuscatedSmaliDir);
+			} else {
+				SmaliRemapperCache.get(decompiler, false).remapSmaliFolder(smaliOriginal.toPath(),
+						deobfuscatedSmaliDir, options.getSmaliRemapThreads());
+			}
+		}
+		return reverseRemapper;
+	}
+
+	private static <T> CompletableFuture<T> submit(Executor executor, MergeStage<T> stage) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		executor.execute(() -> {
+			if (future.isDone()) {
+				// cancelled before start
+				return;
+			}
+			try {
+				future.complete(stage.run());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Wait for a stage and rethrow its failure
+	 */
+	private static <T> T await(CompletableFuture<T> stage) throws IOException, InterruptedException {
+		try {
+			return stage.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new JadxRuntimeException("Merge stage failed", cause);
+		}
+	}
+
+	private static Thread newMergeThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, "apkspy-merge");
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	@FunctionalInterface
+	private interface MergeStage<T> {
+		T run() throws Exception;
+	}
+
+	/**
+	 * Compile changes in-process and convert them with D8, no Gradle project is built
+	 */
+	private static boolean mergeWithD8(JadxDecompiler decompiler, File modifyingApk, String outputLocation, Path root,
+			Path baseTempDir, ApkSpyOptions options, OutputStream out, boolean keepOnError, boolean cleanOnSuccess)
+			throws IOException {
+		String targetVersionDir = findLatestAndroidJars(options.getAndroidSdkPath());
+		Path d8Jar = D8Dexer.findD8Jar(options.getAndroidSdkPath());
+		if (targetVersionDir == null || d8Jar == null || !InMemoryCompiler.isAvailable()) {
+			out.write("D8 build needs android.jar and build-tools of the Android SDK and JADX running on a JDK\n"
+					.getBytes(StandardCharsets.UTF_8));
+			return false;
+		}
+
+		Map<String, ClassBreakdown> classes = ChangeCache.getInstance().getChanges();
+		Path stubPath = root.resolve(Paths.get("libs", "stub.jar"));
+		Files.createDirectories(stubPath.getParent());
+		try {
+			JarGenerator.generateStubJar(modifyingApk, stubPath.toFile(), out, classes, decompiler, root, getStubCacheDir(baseTempDir),
+					options);
+		} catch (IOException e) {
+			LOG.error("Failed to generate stub jar: ", e);
+			out.write(("Failed to generate stub jar: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+			if (!keepOnError) {
+				Util.attemptDelete(root.toFile());
+			}
+			return false;
+		}
+
+		Map<String, String> sources = new LinkedHashMap<>();
+		for (Map.Entry<String, ClassBreakdown> entry : classes.entrySet()) {
+			sources.put(entry.getKey(), entry.getValue().toString());
+		}
+		ClassNode generatedR = findGeneratedRFile(decompiler.getRoot());
+		if (generatedR != null) {
+			sources.put(generatedR.getFullName(), generatedR.getCode().getCodeStr());
+		}
+		Path androidJar = Paths.get(targetVersionDir, "android.jar");
+		Path legacyJar = Paths.get(targetVersionDir, "optional", "org.apache.http.legacy.jar");
+
+		out.write("Started compile...\n".getBytes(StandardCharsets.UTF_8));
+		Map<String, byte[]> compiledClasses = new HashMap<>();
+		if (!InMemoryCompiler.compile(sources, Arrays.asList(androidJar.toFile(), stubPath.toFile(), legacyJar.toFile()),
+				compiledClasses, out, Arrays.asList("-source", "8", "-target", "8", "-Xlint:-options"))) {
+			if (!keepOnError) {
+				Util.attemptDelete(root.toFile());
+			}
+			return false;
+		}
+		List<Path> classFiles = new ArrayList<>();
+		for (Map.Entry<String, byte[]> entry : compiledClasses.entrySet()) {
+			Path classFile = root.resolve("classes").resolve(entry.getKey().replace('.', '/') + ".class");
+			Files.createDirectories(classFile.getParent());
+			Files.write(classFile, entry.getValue());
+			classFiles.add(classFile);
+		}
+
+		out.write("D8: Convert compiled classes\n".getBytes(StandardCharsets.UTF_8));
+		Path dexDir = root.resolve("dex");
+		try {
+			D8Dexer.dex(d8Jar, classFiles, Collections.singletonList(androidJar), Arrays.asList(stubPath, legacyJar), MIN_API_LEVEL,
+					dexDir);
+		} catch (IOException e) {
+			LOG.error("D8 failed: ", e);
+			out.write((e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+			if (!keepOnError) {
+				Util.attemptDelete(root.toFile());
+			}
+			return false;
+		}
+		// D8 may split the changes into several classes*.dex files, the patcher reads all of them
+		return patchDex(decompiler, modifyingApk, root, dexDir, classes, outputLocation, out, keepOnError, cleanOnSuccess);
+	}
+
+	private static boolean patchDex(JadxDecompiler decompiler, File modifyingApk, Path root, Path compiled,
+			Map<String, ClassBreakdown> classes, String outputLocation, OutputStream out, boolean keepOnError, boolean cleanOnSuccess)
+			throws IOException {
+		out.write("Patching dex files of original apk\n".getBytes(StandardCharsets.UTF_8));
+		try {
+			DexPatcher.patch(decompiler, modifyingApk, compiled.toFile(), classes, ChangeCache.getInstance().getClassDeletions(),
+					new File(outputLocation));
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Could not patch apk: ", e);
+			out.write(("Could not patch apk: " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+			if (!keepOnError) {
+				Util.attemptDelete(root.toFile());
+			}
+			return false;
+		}
+		out.write("Finished creating APK!".getBytes(StandardCharsets.UTF_8));
+		if (cleanOnSuccess) {
+			Util.attemptDelete(root.toFile());
+		}
+		return true;
+	}
+
 	private static void copyProjectTemplate(final File projectRoot) {
 		String[] projectFiles = { "apkspy/default/app/src/main/res/values/styles.xml",
 				"apkspy/default/app/src/main/AndroidManifest.xml",
@@ -4,10 +4,42 @@ import jadx.api.plugins.options.impl.BasePluginOptionsBuilder;
 
 public class ApkSpyOptions extends BasePluginOptionsBuilder {
 
+	public enum MergeBackend {
+		APKTOOL,
+		DEX_PATCH
+	}
+
+	public enum BuildBackend {
+		GRADLE,
+		D8
+	}
+
 	private String androidSdkPath;
 
 	private String jdkLocation;
 
+	private boolean inProcessCompiler = true;
+
+	private boolean stubsFromJadxModel = true;
+
+	private boolean parallelStubGeneration = true;
+
+	private boolean stubsClosureOnly;
+
+	private int smaliRemapThreads;
+
+	private boolean targetedSmaliRemap;
+
+	private boolean cacheDecodedApk = true;
+
+	private boolean codeOnlyRebuild;
+
+	private boolean backgroundWarmup;
+
+	private MergeBackend mergeBackend = MergeBackend.APKTOOL;
+
+	private BuildBackend buildBackend = BuildBackend.GRADLE;
+
 	@Override
 	public void registerOptions() {
 		strOption(ApkSpyPlugin.PLUGIN_ID + ".androidSdk.path")
@@ -19,6 +51,62 @@ public class ApkSpyOptions extends BasePluginOptionsBuilder {
 				.description("JDK location (Java 17 or greater)")
 				.defaultValue("")
 				.setter(v -> jdkLocation = v);
+
+		boolOption(ApkSpyPlugin.PLUGIN_ID + ".compiler.inProcess")
+				.description("Compile in-process with the compiler of the running JDK (falls back to external javac)")
+				.defaultValue(true)
+				.setter(v -> inProcessCompiler = v);
+
+		boolOption(ApkSpyPlugin.PLUGIN_ID + ".stubs.fromJadxModel")
+				.description("Generate stub classes from the jadx class model instead of running dex2jar")
+				.defaultValue(true)
+				.setter(v -> stubsFromJadxModel = v);
+
+		boolOption(ApkSpyPlugin.PLUGIN_ID + ".stubs.parallel")
+				.description("Generate stub classes on all available cores")
+				.defaultValue(true)
+				.setter(v -> parallelStubGeneration = v);
+
+		boolOption(ApkSpyPlugin.PLUGIN_ID + ".stubs.closureOnly")
+				.description("Only add classes reachable from the edited code to the stub jar")
+				.defaultValue(false)
+				.setter(v -> stubsClosureOnly = v);
+
+		intOption(ApkSpyPlugin.PLUGIN_ID + ".smali.remapThreads")
+				.description("Threads used to remap the smali of the original apk (0 = all available cores)")
+				.defaultValue(0)
+				.setter(v -> smaliRemapThreads = v);
+
+		boolOption(ApkSpyPlugin.PLUGIN_ID + ".smali.targetedRemap")
+				.description("Keep the original smali and only map merged classes back to the names of the apk")
+				.defaultValue(false)
+				.setter(v -> targetedSmaliRemap = v);
+
+		boolOption(ApkSpyPlugin.PLUGIN_ID + ".merge.cacheDecodedApk")
+				.description("Keep the apktool output of the original apk for later merges")
+				.defaultValue(true)
+				.setter(v -> cacheDecodedApk = v);
+
+		boolOption(ApkSpyPlugin.PLUGIN_ID + ".merge.codeOnlyRebuild")
+				.description("Only assemble the smali with apktool and reuse resources.arsc and the manifest of the original apk")
+				.defaultValue(false)
+				.setter(v -> codeOnlyRebuild = v);
+
+		boolOption(ApkSpyPlugin.PLUGIN_ID + ".merge.warmup")
+				.description("Prepare stub jar and decoded original apk in background after loading")
+				.defaultValue(false)
+				.setter(v -> backgroundWarmup = v);
+
+		enumOption(ApkSpyPlugin.PLUGIN_ID + ".merge.backend", MergeBackend.values(), MergeBackend::valueOf)
+				.description("Rebuild the apk with apktool or only patch the dex files of the original apk")
+				.defaultValue(MergeBackend.APKTOOL)
+				.setter(v -> mergeBackend = v);
+
+		enumOption(ApkSpyPlugin.PLUGIN_ID + ".merge.build", BuildBackend.values(), BuildBackend::valueOf)
+				.description("Build changes with a Gradle project or compile in-process and convert with D8 of the SDK build-tools"
+						+ " (D8 always patches dex files)")
+				.defaultValue(BuildBackend.GRADLE)
+				.setter(v -> buildBackend = v);
 	}
 
 	public String getAndroidSdkPath() {
@@ -28,4 +116,48 @@ public class ApkSpyOptions extends BasePluginOptionsBuilder {
 	public String getJdkLocation() {
 		return jdkLocation;
 	}
+
+	public boolean isInProcessCompiler() {
+		return inProcessCompiler;
+	}
+
+	public boolean isStubsFromJadxModel() {
+		return stubsFromJadxModel;
+	}
+
+	public boolean isParallelStubGeneration() {
+		return parallelStubGeneration;
+	}
+
+	public boolean isStubsClosureOnly() {
+		return stubsClosureOnly;
+	}
+
+	public int getSmaliRemapThreads() {
+		return smaliRemapThreads;
+	}
+
+	public boolean isTargetedSmaliRemap() {
+		return targetedSmaliRemap;
+	}
+
+	public boolean isCacheDecodedApk() {
+		return cacheDecodedApk;
+	}
+
+	public boolean isCodeOnlyRebuild() {
+		return codeOnlyRebuild;
+	}
+
+	public boolean isBackgroundWarmup() {
+		return backgroundWarmup;
+	}
+
+	public MergeBackend getMergeBackend() {
+		return mergeBackend;
+	}
+
+	public BuildBackend getBuildBackend() {
+		return buildBackend;
+	}
 }
@@ -27,7 +27,9 @@ public class ApkSpyPlugin implements JadxPlugin {
 
 		final JadxGuiContext guiContext = context.getGuiContext();
 		if (guiContext != null) {
-			ApkSpyUI.setup(context, guiContext, options);
+			MergeWarmup warmup = new MergeWarmup(options, () -> context.files().getPluginTempDir());
+			context.addPass(warmup);
+			ApkSpyUI.setup(context, guiContext, options, warmup);
 		}
 	}
 }
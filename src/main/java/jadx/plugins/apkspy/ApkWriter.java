@@ -0,0 +1,474 @@
+package jadx.plugins.apkspy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a modified copy of an apk. Replaced entries keep the compression method of the original
+ * entry, all other entries are copied with their compressed bytes from the original file.
+ * Uncompressed entries are aligned like zipalign does (4 bytes, 4096 bytes for native libraries).
+ * Signature files are dropped, the result has to be signed again.
+ */
+public class ApkWriter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ApkWriter.class);
+
+	private static final Pattern SIGNATURE_ENTRY = Pattern.compile("META-INF/(MANIFEST\\.MF|[^/]+\\.(SF|RSA|DSA|EC))");
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIR = 0x06054b50;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+
+	private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+	private static final int FLAG_UTF8 = 0x800;
+
+	// extra field used by apksigner for alignment padding
+	private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+	private static final int ALIGNMENT_EXTRA_SIZE = 6;
+
+	private static final int ALIGNMENT = 4;
+	private static final int NATIVE_LIB_ALIGNMENT = 4096;
+
+	/**
+	 * @param replacedEntries new content by entry name, entries missing in the original are added at
+	 *                        the end
+	 */
+	public static void write(File original, Map<String, byte[]> replacedEntries, File output) throws IOException {
+		long start = System.currentTimeMillis();
+		try (FileChannel in = FileChannel.open(original.toPath(), StandardOpenOption.READ)) {
+			List<Entry> entries = readCentralDirectory(in);
+			if (entries != null) {
+				try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+					writeRaw(in, out, entries, replacedEntries);
+				}
+				LOG.info("Wrote {} in {} ms", output.getName(), System.currentTimeMillis() - start);
+				return;
+			}
+		}
+		LOG.info("Zip64 apk, entries are recompressed: {}", original.getName());
+		try (ZipFile zip = new ZipFile(original)) {
+			writeCopy(zip, replacedEntries, output);
+		}
+	}
+
+	/**
+	 * @return entries in central directory order or null for zip64 files
+	 */
+	@Nullable
+	private static List<Entry> readCentralDirectory(FileChannel in) throws IOException {
+		long fileSize = in.size();
+		int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIR_SIZE + 0xFFFF);
+		ByteBuffer tail = read(in, fileSize - tailSize, tailSize);
+		int eocd = -1;
+		for (int i = tailSize - END_OF_CENTRAL_DIR_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == END_OF_CENTRAL_DIR) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd < 0) {
+			throw new ZipException("End of central directory not found");
+		}
+		int count = u16(tail, eocd + 10);
+		long centralDirSize = u32(tail, eocd + 12);
+		long centralDirOffset = u32(tail, eocd + 16);
+		if (count == 0xFFFF || centralDirSize == 0xFFFFFFFFL || centralDirOffset == 0xFFFFFFFFL) {
+			return null;
+		}
+
+		ByteBuffer centralDir = read(in, centralDirOffset, (int) centralDirSize);
+		List<Entry> entries = new ArrayList<>(count);
+		int pos = 0;
+		for (int i = 0; i < count; i++) {
+			if (centralDir.getInt(pos) != CENTRAL_HEADER) {
+				throw new ZipException("Invalid central directory entry at " + (centralDirOffset + pos));
+			}
+			Entry entry = new Entry();
+			entry.versionMadeBy = u16(centralDir, pos + 4);
+			entry.flags = u16(centralDir, pos + 8);
+			entry.method = u16(centralDir, pos + 10);
+			entry.dosTime = centralDir.getInt(pos + 12);
+			entry.crc = centralDir.getInt(pos + 16);
+			entry.compressedSize = u32(centralDir, pos + 20);
+			entry.size = u32(centralDir, pos + 24);
+			int nameLength = u16(centralDir, pos + 28);
+			int extraLength = u16(centralDir, pos + 30);
+			int commentLength = u16(centralDir, pos + 32);
+			entry.internalAttributes = u16(centralDir, pos + 36);
+			entry.externalAttributes = centralDir.getInt(pos + 38);
+			entry.localOffset = u32(centralDir, pos + 42);
+			entry.rawName = bytes(centralDir, pos + CENTRAL_HEADER_SIZE, nameLength);
+			entry.extra = bytes(centralDir, pos + CENTRAL_HEADER_SIZE + nameLength, extraLength);
+			entry.name = new String(entry.rawName, StandardCharsets.UTF_8);
+			if (entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL || entry.localOffset == 0xFFFFFFFFL) {
+				return null;
+			}
+			entries.add(entry);
+			pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+		return entries;
+	}
+
+	private static void writeRaw(FileChannel in, FileChannel out, List<Entry> entries, Map<String, byte[]> replacedEntries)
+			throws IOException {
+		List<Entry> written = new ArrayList<>();
+		Set<String> names = new HashSet<>();
+		for (Entry entry : entries) {
+			names.add(entry.name);
+			if (SIGNATURE_ENTRY.matcher(entry.name).matches()) {
+				continue;
+			}
+			writeEntry(in, out, entry, replacedEntries.get(entry.name));
+			written.add(entry);
+		}
+		for (Map.Entry<String, byte[]> added : replacedEntries.entrySet()) {
+			if (!names.contains(added.getKey())) {
+				Entry entry = newEntry(added.getKey(), findTemplate(entries, added.getKey()));
+				writeEntry(in, out, entry, added.getValue());
+				written.add(entry);
+			}
+		}
+		writeCentralDirectory(out, written);
+	}
+
+	/**
+	 * @param replaced new content or null to copy the entry
+	 */
+	private static void writeEntry(FileChannel in, FileChannel out, Entry entry, @Nullable byte[] replaced) throws IOException {
+		byte[] content = null;
+		long dataStart = 0;
+		if (replaced != null) {
+			// stored entries stay stored, e.g. uncompressed dex files loaded in place
+			if (entry.method == ZipEntry.STORED) {
+				content = replaced;
+			} else {
+				content = deflate(replaced);
+				entry.method = ZipEntry.DEFLATED;
+			}
+			entry.crc = crc(replaced);
+			entry.compressedSize = content.length;
+			entry.size = replaced.length;
+			entry.extra = new byte[0];
+		} else {
+			ByteBuffer localHeader = read(in, entry.localOffset, LOCAL_HEADER_SIZE);
+			if (localHeader.getInt(0) != LOCAL_HEADER) {
+				throw new ZipException("Invalid local header for " + entry.name);
+			}
+			dataStart = entry.localOffset + LOCAL_HEADER_SIZE + u16(localHeader, 26) + u16(localHeader, 28);
+		}
+		// sizes are always known, so no data descriptor is written
+		entry.flags &= ~FLAG_DATA_DESCRIPTOR;
+		entry.newOffset = out.position();
+		writeLocalHeader(out, entry);
+		if (content != null) {
+			writeFully(out, ByteBuffer.wrap(content));
+		} else {
+			transfer(in, dataStart, entry.compressedSize, out);
+		}
+	}
+
+	/**
+	 * Added entries are compressed like the last original entry with the same extension, e.g. an added
+	 * classes3.dex like classes2.dex
+	 */
+	@Nullable
+	private static Entry findTemplate(List<Entry> entries, String name) {
+		String extension = getExtension(name);
+		Entry template = null;
+		for (Entry entry : entries) {
+			if (getExtension(entry.name).equals(extension) && !SIGNATURE_ENTRY.matcher(entry.name).matches()) {
+				template = entry;
+			}
+		}
+		return template;
+	}
+
+	private static Entry newEntry(String name, @Nullable Entry template) {
+		Entry entry = new Entry();
+		entry.name = name;
+		entry.rawName = name.getBytes(StandardCharsets.UTF_8);
+		entry.extra = new byte[0];
+		if (entry.rawName.length != name.length()) {
+			entry.flags = FLAG_UTF8;
+		}
+		if (template != null) {
+			entry.versionMadeBy = template.versionMadeBy;
+			entry.method = template.method;
+			entry.dosTime = template.dosTime;
+		} else {
+			entry.versionMadeBy = 20;
+			entry.method = ZipEntry.DEFLATED;
+		}
+		return entry;
+	}
+
+	private static void writeLocalHeader(FileChannel out, Entry entry) throws IOException {
+		int padding = 0;
+		if (entry.method == ZipEntry.STORED) {
+			padding = getAlignmentPadding(entry.newOffset + LOCAL_HEADER_SIZE + entry.rawName.length, getAlignment(entry.name));
+		}
+		ByteBuffer header = allocate(LOCAL_HEADER_SIZE + entry.rawName.length + padding);
+		header.putInt(LOCAL_HEADER);
+		header.putShort((short) entry.getVersionNeeded());
+		header.putShort((short) entry.flags);
+		header.putShort((short) entry.method);
+		header.putInt(entry.dosTime);
+		header.putInt(entry.crc);
+		header.putInt((int) entry.compressedSize);
+		header.putInt((int) entry.size);
+		header.putShort((short) entry.rawName.length);
+		header.putShort((short) padding);
+		header.put(entry.rawName);
+		if (padding != 0) {
+			header.putShort((short) ALIGNMENT_EXTRA_ID);
+			header.putShort((short) (padding - 4));
+			header.putShort((short) getAlignment(entry.name));
+		}
+		// remaining padding bytes are already zero
+		header.position(header.capacity());
+		header.flip();
+		writeFully(out, header);
+	}
+
+	private static void writeCentralDirectory(FileChannel out, List<Entry> entries) throws IOException {
+		long centralDirOffset = out.position();
+		for (Entry entry : entries) {
+			ByteBuffer header = allocate(CENTRAL_HEADER_SIZE + entry.rawName.length + entry.extra.length);
+			header.putInt(CENTRAL_HEADER);
+			header.putShort((short) entry.versionMadeBy);
+			header.putShort((short) entry.getVersionNeeded());
+			header.putShort((short) entry.flags);
+			header.putShort((short) entry.method);
+			header.putInt(entry.dosTime);
+			header.putInt(entry.crc);
+			header.putInt((int) entry.compressedSize);
+			header.putInt((int) entry.size);
+			header.putShort((short) entry.rawName.length);
+			header.putShort((short) entry.extra.length);
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putShort((short) entry.internalAttributes);
+			header.putInt(entry.externalAttributes);
+			header.putInt((int) entry.newOffset);
+			header.put(entry.rawName);
+			header.put(entry.extra);
+			header.flip();
+			writeFully(out, header);
+		}
+		long centralDirSize = out.position() - centralDirOffset;
+		if (out.position() > 0xFFFFFFFFL) {
+			throw new ZipException("Apk exceeds 4 GB, zip64 is not supported");
+		}
+
+		ByteBuffer end = allocate(END_OF_CENTRAL_DIR_SIZE);
+		end.putInt(END_OF_CENTRAL_DIR);
+		end.putShort((short) 0);
+		end.putShort((short) 0);
+		end.putShort((short) entries.size());
+		end.putShort((short) entries.size());
+		end.putInt((int) centralDirSize);
+		end.putInt((int) centralDirOffset);
+		end.putShort((short) 0);
+		end.flip();
+		writeFully(out, end);
+	}
+
+	/**
+	 * @return length of the alignment extra field, 0 if the data is already aligned
+	 */
+	private static int getAlignmentPadding(long dataOffset, int alignment) {
+		int misalignment = (int) (dataOffset % alignment);
+		if (misalignment == 0) {
+			return 0;
+		}
+		int padding = alignment - misalignment;
+		while (padding < ALIGNMENT_EXTRA_SIZE) {
+			padding += alignment;
+		}
+		return padding;
+	}
+
+	private static int getAlignment(String name) {
+		return name.startsWith("lib/") && name.endsWith(".so") ? NATIVE_LIB_ALIGNMENT : ALIGNMENT;
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] buffer = new byte[64 * 1024];
+			while (!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				bos.write(buffer, 0, length);
+			}
+			return bos.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static int crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+		long remaining = count;
+		while (remaining > 0) {
+			long transferred = in.transferTo(position, remaining, out);
+			if (transferred <= 0) {
+				throw new ZipException("Unexpected end of zip file at " + position);
+			}
+			position += transferred;
+			remaining -= transferred;
+		}
+	}
+
+	private static ByteBuffer read(FileChannel in, long position, int length) throws IOException {
+		ByteBuffer buffer = allocate(length);
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer, position + buffer.position()) < 0) {
+				throw new ZipException("Unexpected end of zip file at " + (position + buffer.position()));
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	private static ByteBuffer allocate(int length) {
+		return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int u16(ByteBuffer buffer, int index) {
+		return Short.toUnsignedInt(buffer.getShort(index));
+	}
+
+	private static long u32(ByteBuffer buffer, int index) {
+		return Integer.toUnsignedLong(buffer.getInt(index));
+	}
+
+	private static byte[] bytes(ByteBuffer buffer, int index, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(index, bytes);
+		return bytes;
+	}
+
+	/**
+	 * Fallback for zip64 files, content of copied entries is decompressed and compressed again
+	 */
+	private static void writeCopy(ZipFile original, Map<String, byte[]> replacedEntries, File output) throws IOException {
+		Map<String, Integer> methodsByExtension = new HashMap<>();
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(output))) {
+			Enumeration<? extends ZipEntry> entries = original.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (SIGNATURE_ENTRY.matcher(entry.getName()).matches()) {
+					continue;
+				}
+				methodsByExtension.put(getExtension(entry.getName()), entry.getMethod());
+				byte[] replaced = replacedEntries.get(entry.getName());
+				if (replaced != null) {
+					putEntry(zos, entry.getName(), entry.getMethod(), replaced);
+				} else {
+					ZipEntry copy = new ZipEntry(entry.getName());
+					copy.setTime(entry.getTime());
+					if (entry.getMethod() == ZipEntry.STORED) {
+						copy.setMethod(ZipEntry.STORED);
+						copy.setSize(entry.getSize());
+						copy.setCompressedSize(entry.getCompressedSize());
+						copy.setCrc(entry.getCrc());
+					}
+					zos.putNextEntry(copy);
+					try (InputStream in = original.getInputStream(entry)) {
+						in.transferTo(zos);
+					}
+					zos.closeEntry();
+				}
+			}
+			for (Map.Entry<String, byte[]> added : replacedEntries.entrySet()) {
+				if (original.getEntry(added.getKey()) == null) {
+					int method = methodsByExtension.getOrDefault(getExtension(added.getKey()), ZipEntry.DEFLATED);
+					putEntry(zos, added.getKey(), method, added.getValue());
+				}
+			}
+		}
+	}
+
+	private static void putEntry(ZipOutputStream zos, String name, int method, byte[] content) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		if (method == ZipEntry.STORED) {
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(content.length);
+			entry.setCompressedSize(content.length);
+			entry.setCrc(Integer.toUnsignedLong(crc(content)));
+		}
+		zos.putNextEntry(entry);
+		zos.write(content);
+		zos.closeEntry();
+	}
+
+	private static String getExtension(String name) {
+		return name.substring(name.lastIndexOf('.') + 1);
+	}
+
+	private static final class Entry {
+		private String name;
+		private byte[] rawName;
+		private byte[] extra;
+		private int versionMadeBy;
+		private int flags;
+		private int method;
+		private int dosTime;
+		private int crc;
+		private long compressedSize;
+		private long size;
+		private int internalAttributes;
+		private int externalAttributes;
+		private long localOffset;
+		private long newOffset;
+
+		private int getVersionNeeded() {
+			return method == ZipEntry.DEFLATED ? 20 : 10;
+		}
+	}
+}
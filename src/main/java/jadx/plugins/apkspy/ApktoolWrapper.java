@@ -3,8 +3,20 @@ package jadx.plugins.apkspy;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.android.tools.smali.smali.Smali;
+import com.android.tools.smali.smali.SmaliOptions;
 
 import brut.androlib.ApkBuilder;
 import brut.androlib.ApkDecoder;
@@ -13,9 +25,11 @@ import brut.androlib.exceptions.AndrolibException;
 
 public class ApktoolWrapper {
 
+	private static final Pattern SMALI_DIR = Pattern.compile("smali(?:_classes(\\d+))?");
+
 	private static String apktoolVersion = "";
 
-	private static String getApktoolVersion() {
+	static String getApktoolVersion() {
 
 		if (apktoolVersion.isEmpty()) {
 			Properties properties = new Properties();
@@ -33,11 +47,11 @@ public class ApktoolWrapper {
 		return new Config(getApktoolVersion());
 	}
 
-	public static void decode(Path apk, File outDir, boolean resources)
+	public static void decode(Path apk, File outDir, boolean skipResources)
 			throws AndrolibException {
 
 		Config config = getConfig();
-		if (resources) {
+		if (skipResources) {
 			config.setDecodeResources(Config.DecodeResources.NONE);
 		}
 
@@ -51,4 +65,71 @@ public class ApktoolWrapper {
 		File outFile = new File(outputLocation);
 		new ApkBuilder(apk.toFile(), config).build(outFile);
 	}
+
+	/**
+	 * Assemble the smali folders of a decoded apk and copy all other entries unchanged from the
+	 * original apk. Resources are never rebuilt, so aapt is not needed.
+	 */
+	public static void buildCodeOnly(Path decodedDir, Path originalApk, String outputLocation)
+			throws AndrolibException {
+
+		File[] dirs = decodedDir.toFile().listFiles();
+		if (dirs == null) {
+			throw new AndrolibException("Not a directory: " + decodedDir);
+		}
+		try (ZipFile zip = new ZipFile(originalApk.toFile())) {
+			Map<String, byte[]> dexFiles = new HashMap<>();
+			for (File dir : dirs) {
+				Matcher matcher = SMALI_DIR.matcher(dir.getName());
+				if (!dir.isDirectory() || !matcher.matches()) {
+					continue;
+				}
+				String dexName = "classes" + (matcher.group(1) == null ? "" : matcher.group(1)) + ".dex";
+				ZipEntry originalDex = zip.getEntry(dexName);
+				if (originalDex == null) {
+					throw new AndrolibException("No " + dexName + " in original apk for " + dir.getName());
+				}
+				dexFiles.put(dexName, assemble(dir, getApiLevel(zip, originalDex)));
+			}
+			ApkWriter.write(originalApk.toFile(), dexFiles, new File(outputLocation));
+		} catch (IOException e) {
+			throw new AndrolibException(e);
+		}
+	}
+
+	private static byte[] assemble(File smaliDir, int apiLevel) throws IOException, AndrolibException {
+		Path dexTemp = Files.createTempFile("apkspy", ".dex");
+		try {
+			SmaliOptions options = new SmaliOptions();
+			options.apiLevel = apiLevel;
+			options.outputDexFile = dexTemp.toAbsolutePath().toString();
+			if (!Smali.assemble(options, Collections.singletonList(smaliDir.getAbsolutePath()))) {
+				throw new AndrolibException("Could not assemble " + smaliDir.getName());
+			}
+			return Files.readAllBytes(dexTemp);
+		} finally {
+			Files.deleteIfExists(dexTemp);
+		}
+	}
+
+	/**
+	 * Lowest api level that keeps the dex version of the original dex file
+	 */
+	private static int getApiLevel(ZipFile zip, ZipEntry dexEntry) throws IOException {
+		byte[] magic;
+		try (InputStream in = zip.getInputStream(dexEntry)) {
+			magic = in.readNBytes(8);
+		}
+		int version = magic.length == 8 ? Integer.parseInt(new String(magic, 4, 3, StandardCharsets.US_ASCII)) : 35;
+		switch (version) {
+			case 35:
+				return 23;
+			case 37:
+				return 25;
+			case 38:
+				return 27;
+			default:
+				return 28;
+		}
+	}
 }
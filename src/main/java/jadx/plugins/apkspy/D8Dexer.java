@@ -0,0 +1,118 @@
+package jadx.plugins.apkspy;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs D8 of the Android SDK build-tools in-process. d8.jar is loaded by its own class loader, so
+ * the D8 version matches the installed build-tools and no dependency is bundled.
+ */
+public class D8Dexer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(D8Dexer.class);
+
+	private static final Map<Path, ClassLoader> CLASS_LOADERS = new ConcurrentHashMap<>();
+
+	/**
+	 * @return d8.jar of the latest build-tools or null if none is installed
+	 */
+	@Nullable
+	public static Path findD8Jar(String sdkPath) {
+		File buildToolsDir = new File(sdkPath, "build-tools");
+		File[] versionDirs = buildToolsDir.listFiles();
+		if (versionDirs == null) {
+			return null;
+		}
+		File latest = null;
+		for (File versionDir : versionDirs) {
+			if (new File(versionDir, "lib/d8.jar").isFile()
+					&& (latest == null || compareVersions(versionDir.getName(), latest.getName()) > 0)) {
+				latest = versionDir;
+			}
+		}
+		return latest == null ? null : latest.toPath().resolve("lib").resolve("d8.jar");
+	}
+
+	private static int compareVersions(String a, String b) {
+		String[] partsA = a.split("[.-]");
+		String[] partsB = b.split("[.-]");
+		for (int i = 0; i < Math.min(partsA.length, partsB.length); i++) {
+			int result;
+			try {
+				result = Integer.compare(Integer.parseInt(partsA[i]), Integer.parseInt(partsB[i]));
+			} catch (NumberFormatException e) {
+				result = partsA[i].compareTo(partsB[i]);
+			}
+			if (result != 0) {
+				return result;
+			}
+		}
+		// release versions have less parts than preview versions (e.g. 34.0.0 and 34.0.0-rc1)
+		return Integer.compare(partsB.length, partsA.length);
+	}
+
+	/**
+	 * @param classFiles program classes to convert
+	 * @param libraries  android.jar of the target platform
+	 * @param classpath  classes referenced by the program classes, not converted
+	 * @param outputDir  receives classes.dex
+	 */
+	public static void dex(Path d8Jar, Collection<Path> classFiles, Collection<Path> libraries, Collection<Path> classpath,
+			int minApiLevel, Path outputDir) throws IOException {
+		Files.createDirectories(outputDir);
+		ClassLoader loader = CLASS_LOADERS.computeIfAbsent(d8Jar, D8Dexer::newClassLoader);
+		try {
+			Class<?> commandClass = loader.loadClass("com.android.tools.r8.D8Command");
+			Class<?> outputModeClass = loader.loadClass("com.android.tools.r8.OutputMode");
+			Object builder = commandClass.getMethod("builder").invoke(null);
+			invoke(builder, "addProgramFiles", Collection.class, classFiles);
+			invoke(builder, "addLibraryFiles", Collection.class, classpathFiles(libraries));
+			invoke(builder, "addClasspathFiles", Collection.class, classpathFiles(classpath));
+			invoke(builder, "setMinApiLevel", int.class, minApiLevel);
+			builder.getClass().getMethod("setOutput", Path.class, outputModeClass)
+					.invoke(builder, outputDir, outputModeClass.getField("DexIndexed").get(null));
+			Object command = builder.getClass().getMethod("build").invoke(builder);
+
+			long start = System.currentTimeMillis();
+			loader.loadClass("com.android.tools.r8.D8").getMethod("run", commandClass).invoke(null, command);
+			LOG.info("Converted {} classes to dex in {} ms", classFiles.size(), System.currentTimeMillis() - start);
+		} catch (InvocationTargetException e) {
+			throw new IOException("D8 failed: " + e.getCause().getMessage(), e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Unsupported d8.jar: " + d8Jar, e);
+		}
+	}
+
+	private static Collection<Path> classpathFiles(Collection<Path> files) {
+		return files.stream().filter(Files::exists).collect(Collectors.toList());
+	}
+
+	private static void invoke(Object builder, String name, Class<?> parameterType, Object argument)
+			throws ReflectiveOperationException {
+		Method method = builder.getClass().getMethod(name, parameterType);
+		method.invoke(builder, argument);
+	}
+
+	private static ClassLoader newClassLoader(Path d8Jar) {
+		try {
+			return new URLClassLoader(new URL[] { d8Jar.toUri().toURL() },
+					ClassLoader.getPlatformClassLoader());
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid d8.jar location: " + d8Jar, e);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package jadx.plugins.apkspy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brut.androlib.exceptions.AndrolibException;
+
+import jadx.api.JadxDecompiler;
+import jadx.plugins.apkspy.utils.Util;
+
+/**
+ * On-disk cache of apks decoded by apktool and of their smali with jadx names applied. Files are
+ * hard-linked into the output directory where possible, so files must be replaced (not written in
+ * place) when they are modified.
+ */
+public class DecodedApkCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DecodedApkCache.class);
+
+	private static final String CACHE_VERSION = "1";
+
+	private static final String REMAPPED_PREFIX = "remap-" + CACHE_VERSION + "-";
+
+	private static final int MAX_CACHED_APKS = 2;
+
+	/**
+	 * Entries are touched whenever they are used, recently touched entries may still be linked by a
+	 * running merge or warm-up and are never pruned
+	 */
+	private static final long IN_USE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	/**
+	 * Small files apktool may rewrite in place when building, always copied
+	 */
+	private static final Set<String> COPIED_FILES = Set.of("apktool.yml", "AndroidManifest.xml");
+
+	/**
+	 * @return the cached decoded apk, must not be modified
+	 */
+	public static Path decode(Path cacheDir, Path apk, File outDir, boolean skipResources) throws AndrolibException, IOException {
+		Path cached = prepare(cacheDir, apk, skipResources);
+		linkTree(cached, outDir.toPath());
+		return cached;
+	}
+
+	/**
+	 * Decode the apk into the cache if it is missing
+	 *
+	 * @return the cached decoded apk, must not be modified
+	 */
+	public static Path prepare(Path cacheDir, Path apk, boolean skipResources) throws AndrolibException, IOException {
+		Path cached = cacheDir.resolve(getCacheKey(apk, skipResources));
+		if (Files.isDirectory(cached)) {
+			LOG.info("Reusing decoded apk: {}", cached);
+			Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+		} else {
+			Files.createDirectories(cacheDir);
+			Path tempDir = Files.createTempDirectory(cacheDir, "decode");
+			try {
+				Path decoded = tempDir.resolve("apk");
+				ApktoolWrapper.decode(apk, decoded.toFile(), skipResources);
+				Files.move(decoded, cached, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+				LOG.debug("Decoded apk was added concurrently: {}", cached);
+			} finally {
+				Util.attemptDelete(tempDir.toFile());
+			}
+			prune(cacheDir, CACHE_VERSION + "-");
+		}
+		return cached;
+	}
+
+	static String getCacheKey(Path apk, boolean skipResources) throws IOException {
+		return CACHE_VERSION + "-" + ApktoolWrapper.getApktoolVersion() + "-" + (skipResources ? "nores" : "res") + "-"
+				+ Util.sha256(apk).substring(0, 32);
+	}
+
+	/**
+	 * Link the smali folder of a cached decoded apk with jadx names applied. The remapped smali is
+	 * cached as well, the names assigned by jadx are part of its key.
+	 *
+	 * @param decoded cached decoded apk returned by {@link #prepare(Path, Path, boolean)}
+	 */
+	public static void linkRemappedSmali(Path cacheDir, Path decoded, JadxDecompiler decompiler, int threads, Path target)
+			throws IOException {
+		linkTree(prepareRemappedSmali(cacheDir, decoded, decompiler, threads), target);
+	}
+
+	/**
+	 * @return the cached remapped smali folder, must not be modified
+	 */
+	public static Path prepareRemappedSmali(Path cacheDir, Path decoded, JadxDecompiler decompiler, int threads) throws IOException {
+		String key = REMAPPED_PREFIX + decoded.getFileName() + "-" + StubJarCache.renameStateDigest(decompiler).substring(0, 32);
+		Path cached = cacheDir.resolve(key);
+		if (Files.isDirectory(cached)) {
+			LOG.info("Reusing remapped smali: {}", cached);
+			Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+			return cached;
+		}
+		// the decoded apk is read while remapping
+		Files.setLastModifiedTime(decoded, FileTime.fromMillis(System.currentTimeMillis()));
+		Path tempDir = Files.createTempDirectory(cacheDir, "remap");
+		try {
+			Path remapped = tempDir.resolve("smali");
+			SmaliRemapperCache.get(decompiler, false).remapSmaliFolder(decoded.resolve("smali"), remapped, threads);
+			Files.move(remapped, cached, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+			LOG.debug("Remapped smali was added concurrently: {}", cached);
+		} finally {
+			Util.attemptDelete(tempDir.toFile());
+		}
+		prune(cacheDir, REMAPPED_PREFIX);
+		return cached;
+	}
+
+	/**
+	 * Hard-link all files except the few apktool may rewrite, fall back to copying if links are not
+	 * supported
+	 */
+	private static void linkTree(Path source, Path target) throws IOException {
+		boolean linksSupported = true;
+		try (Stream<Path> paths = Files.walk(source)) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				Path dest = target.resolve(source.relativize(path).toString());
+				if (Files.isDirectory(path)) {
+					Files.createDirectories(dest);
+					continue;
+				}
+				if (linksSupported && !isCopied(source.relativize(path))) {
+					try {
+						Files.createLink(dest, path);
+						continue;
+					} catch (IOException | UnsupportedOperationException e) {
+						LOG.debug("Hard links not supported, copying decoded apk: {}", e.getMessage());
+						linksSupported = false;
+					}
+				}
+				Files.copy(path, dest, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	private static boolean isCopied(Path relativePath) {
+		return relativePath.getNameCount() == 1 && COPIED_FILES.contains(relativePath.toString());
+	}
+
+	/**
+	 * Keep only the most recently used entries starting with prefix, entries in use are kept as well
+	 */
+	private static void prune(Path cacheDir, String prefix) {
+		try (Stream<Path> files = Files.list(cacheDir)) {
+			List<Path> dirs = files.filter(Files::isDirectory)
+					.filter(path -> path.getFileName().toString().startsWith(prefix))
+					.sorted(Comparator.comparingLong(DecodedApkCache::lastModified).reversed())
+					.collect(Collectors.toList());
+			long inUseSince = System.currentTimeMillis() - IN_USE_MILLIS;
+			for (Path dir : dirs.subList(Math.min(MAX_CACHED_APKS, dirs.size()), dirs.size())) {
+				if (lastModified(dir) < inUseSince) {
+					Util.attemptDelete(dir.toFile());
+				}
+			}
+		} catch (IOException e) {
+			LOG.warn("Could not prune decoded apk cache: ", e);
+		}
+	}
+
+	private static long lastModified(Path path) {
+		try {
+			return Files.getLastModifiedTime(path).toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package jadx.plugins.apkspy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.android.tools.smali.dexlib2.Opcodes;
+import com.android.tools.smali.dexlib2.dexbacked.DexBackedDexFile;
+import com.android.tools.smali.dexlib2.iface.ClassDef;
+import com.android.tools.smali.dexlib2.iface.Method;
+import com.android.tools.smali.dexlib2.iface.reference.FieldReference;
+import com.android.tools.smali.dexlib2.iface.reference.MethodReference;
+import com.android.tools.smali.dexlib2.immutable.ImmutableClassDef;
+import com.android.tools.smali.dexlib2.immutable.ImmutableMethod;
+import com.android.tools.smali.dexlib2.immutable.reference.ImmutableFieldReference;
+import com.android.tools.smali.dexlib2.immutable.reference.ImmutableMethodReference;
+import com.android.tools.smali.dexlib2.rewriter.DexRewriter;
+import com.android.tools.smali.dexlib2.rewriter.Rewriter;
+import com.android.tools.smali.dexlib2.rewriter.RewriterModule;
+import com.android.tools.smali.dexlib2.rewriter.Rewriters;
+import com.android.tools.smali.dexlib2.writer.io.FileDataStore;
+import com.android.tools.smali.dexlib2.writer.pool.DexPool;
+
+import jadx.api.JadxDecompiler;
+import jadx.plugins.apkspy.model.ClassBreakdown;
+import jadx.plugins.apkspy.model.SmaliBreakdown;
+import jadx.plugins.apkspy.rename.smali.SmaliRemapper;
+
+/**
+ * Patches the dex files of the original apk: changed methods of compiled classes are mapped back to
+ * the raw names of the apk and replace the methods in the original class definitions. New classes
+ * are added to classes.dex, or to new dex files once it reaches the 64K reference limit. Dex files
+ * without changes and all other entries are copied unchanged.
+ */
+public class DexPatcher {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DexPatcher.class);
+
+	private static final Pattern DEX_ENTRY = Pattern.compile("classes(\\d*)\\.dex");
+
+	private static final String PRIMARY_DEX = "classes.dex";
+
+	private final SmaliRemapper remapper;
+
+	private final DexRewriter rewriter;
+
+	private DexPatcher(JadxDecompiler decompiler) {
+		this.remapper = SmaliRemapperCache.get(decompiler, true);
+		this.rewriter = new DexRewriter(new ReverseRenameModule());
+	}
+
+	/**
+	 * @param compiled  apk, dex file or directory of dex files containing the compiled edited classes
+	 *                  (with jadx names)
+	 * @param classes   edited classes by jadx full name
+	 * @param deletions deleted classes as smali paths (with jadx names)
+	 * @param output    patched apk, needs to be signed
+	 */
+	public static void patch(JadxDecompiler decompiler, File originalApk, File compiled, Map<String, ClassBreakdown> classes,
+			Set<String> deletions, File output) throws IOException {
+		new DexPatcher(decompiler).patchApk(originalApk, compiled, classes, deletions, output);
+	}
+
+	private void patchApk(File originalApk, File compiled, Map<String, ClassBreakdown> classes, Set<String> deletions, File output)
+			throws IOException {
+		// compiled classes by raw type descriptor
+		Map<String, ClassDef> compiledClasses = new HashMap<>();
+		Map<String, ClassBreakdown> breakdowns = new HashMap<>();
+		for (DexBackedDexFile dexFile : readCompiledDexFiles(compiled)) {
+			for (ClassDef classDef : dexFile.getClasses()) {
+				String aliasName = toClassName(classDef.getType());
+				ClassBreakdown breakdown = classes.get(aliasName);
+				if (breakdown != null) {
+					String rawType = mapType(classDef.getType());
+					compiledClasses.put(rawType, classDef);
+					breakdowns.put(rawType, breakdown);
+				}
+			}
+		}
+		Set<String> deletedTypes = new HashSet<>();
+		for (String deletion : deletions) {
+			String internalName = deletion.substring(0, deletion.length() - ".smali".length()).replace(File.separatorChar, '/');
+			deletedTypes.add("L" + remapper.mapClassName(internalName) + ";");
+		}
+
+		try (ZipFile zip = new ZipFile(originalApk)) {
+			Map<String, DexBackedDexFile> dexFiles = readDexFiles(zip);
+			if (!dexFiles.containsKey(PRIMARY_DEX)) {
+				throw new IOException("No " + PRIMARY_DEX + " in " + originalApk.getName());
+			}
+			Map<String, byte[]> patchedDexFiles = new LinkedHashMap<>();
+			Set<String> newTypes = new TreeSet<>(compiledClasses.keySet());
+			for (DexBackedDexFile dexFile : dexFiles.values()) {
+				for (ClassDef classDef : dexFile.getClasses()) {
+					newTypes.remove(classDef.getType());
+				}
+			}
+			List<String> spilledTypes = new ArrayList<>();
+			for (Map.Entry<String, DexBackedDexFile> entry : dexFiles.entrySet()) {
+				DexBackedDexFile dexFile = entry.getValue();
+				List<String> addedTypes = PRIMARY_DEX.equals(entry.getKey()) ? new ArrayList<>(newTypes) : new ArrayList<>();
+				byte[] patched = patchDex(entry.getKey(), dexFile, compiledClasses, breakdowns, deletedTypes, addedTypes, spilledTypes);
+				if (patched != null) {
+					LOG.info("Patched dex file: {}", entry.getKey());
+					patchedDexFiles.put(entry.getKey(), patched);
+				}
+			}
+			int dexIndex = getNextDexIndex(dexFiles.keySet());
+			while (!spilledTypes.isEmpty()) {
+				String dexName = "classes" + dexIndex++ + ".dex";
+				DexPool pool = new DexPool(dexFiles.get(PRIMARY_DEX).getOpcodes());
+				List<String> remaining = new ArrayList<>();
+				addTypes(pool, compiledClasses, spilledTypes, remaining);
+				if (remaining.size() == spilledTypes.size()) {
+					throw new IOException("Added class " + toClassName(remaining.get(0))
+							+ " exceeds the 64K reference limit of a dex file");
+				}
+				LOG.info("Added classes do not fit into {}, writing {} of them to {}", PRIMARY_DEX,
+						spilledTypes.size() - remaining.size(), dexName);
+				patchedDexFiles.put(dexName, write(pool));
+				spilledTypes = remaining;
+			}
+			ApkWriter.write(originalApk, patchedDexFiles, output);
+		}
+	}
+
+	/**
+	 * @param addedTypes   new classes to add to this dex file
+	 * @param spilledTypes collects added classes that exceed the reference limit of this dex file
+	 * @return patched dex file or null if it is unchanged
+	 */
+	private byte[] patchDex(String dexName, DexBackedDexFile dexFile, Map<String, ClassDef> compiledClasses,
+			Map<String, ClassBreakdown> breakdowns, Set<String> deletedTypes, Collection<String> addedTypes, List<String> spilledTypes)
+			throws IOException {
+		boolean changed = false;
+		DexPool pool = new DexPool(dexFile.getOpcodes());
+		for (ClassDef classDef : dexFile.getClasses()) {
+			String type = classDef.getType();
+			if (deletedTypes.contains(type)) {
+				changed = true;
+			} else if (compiledClasses.containsKey(type)) {
+				pool.internClass(patchClass(classDef, compiledClasses.get(type), breakdowns.get(type)));
+				changed = true;
+			} else {
+				pool.internClass(classDef);
+			}
+		}
+		if (pool.hasOverflowed()) {
+			throw new IOException(dexName + " exceeds the 64K reference limit of a dex file after patching");
+		}
+		if (addTypes(pool, compiledClasses, addedTypes, spilledTypes)) {
+			changed = true;
+		}
+		return changed ? write(pool) : null;
+	}
+
+	/**
+	 * Adds classes until the pool is full
+	 *
+	 * @param overflow collects the classes that do not fit
+	 * @return true if a class was added
+	 */
+	private boolean addTypes(DexPool pool, Map<String, ClassDef> compiledClasses, Collection<String> types, List<String> overflow) {
+		boolean added = false;
+		for (String type : types) {
+			if (!overflow.isEmpty()) {
+				// keep the remaining classes together
+				overflow.add(type);
+				continue;
+			}
+			pool.mark();
+			pool.internClass(rewriter.getClassDefRewriter().rewrite(compiledClasses.get(type)));
+			if (pool.hasOverflowed()) {
+				pool.reset();
+				overflow.add(type);
+			} else {
+				added = true;
+			}
+		}
+		return added;
+	}
+
+	private static byte[] write(DexPool pool) throws IOException {
+		Path dexTemp = Files.createTempFile("apkspy", ".dex");
+		try {
+			pool.writeTo(new FileDataStore(dexTemp.toFile()));
+			return Files.readAllBytes(dexTemp);
+		} finally {
+			Files.deleteIfExists(dexTemp);
+		}
+	}
+
+	private static int getNextDexIndex(Set<String> dexNames) {
+		int next = 2;
+		for (String dexName : dexNames) {
+			Matcher matcher = DEX_ENTRY.matcher(dexName);
+			if (matcher.matches() && !matcher.group(1).isEmpty()) {
+				next = Math.max(next, Integer.parseInt(matcher.group(1)) + 1);
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Replace the changed methods of the original class with the compiled ones. All other methods of
+	 * the compiled class are stubs.
+	 */
+	private ClassDef patchClass(ClassDef original, ClassDef compiled, ClassBreakdown breakdown) {
+		Map<String, Method> methods = new LinkedHashMap<>();
+		for (Method method : original.getMethods()) {
+			methods.put(getMethodKey(method), method);
+		}
+		Set<String> changedMethodKeys = SmaliBreakdown.getChangedMethodKeys(breakdown);
+		for (Method method : compiled.getMethods()) {
+			if (!changedMethodKeys.contains(SmaliBreakdown.getSignatureKey(method.getName(), getDescriptor(method)))) {
+				continue;
+			}
+			Method rewritten = rewriter.getMethodRewriter().rewrite(method);
+			String descriptor = getDescriptor(rewritten);
+			String name = remapper.mapMethodName(toInternalName(original.getType()), method.getName(), descriptor);
+			methods.put(name + descriptor, new ImmutableMethod(original.getType(), name, rewritten.getParameters(),
+					rewritten.getReturnType(), rewritten.getAccessFlags(), rewritten.getAnnotations(),
+					rewritten.getHiddenApiRestrictions(), rewritten.getImplementation()));
+		}
+		return new ImmutableClassDef(original.getType(), original.getAccessFlags(), original.getSuperclass(),
+				original.getInterfaces(), original.getSourceFile(), original.getAnnotations(), original.getFields(),
+				methods.values());
+	}
+
+	private static Collection<DexBackedDexFile> readCompiledDexFiles(File compiled) throws IOException {
+		if (compiled.isDirectory()) {
+			List<DexBackedDexFile> dexFiles = new ArrayList<>();
+			File[] files = compiled.listFiles((dir, name) -> DEX_ENTRY.matcher(name).matches());
+			if (files == null || files.length == 0) {
+				throw new IOException("No dex files found in " + compiled);
+			}
+			for (File file : files) {
+				dexFiles.add(new DexBackedDexFile(Opcodes.getDefault(), Files.readAllBytes(file.toPath())));
+			}
+			return dexFiles;
+		}
+		if (compiled.getName().endsWith(".dex")) {
+			return Collections.singletonList(new DexBackedDexFile(Opcodes.getDefault(), Files.readAllBytes(compiled.toPath())));
+		}
+		try (ZipFile zip = new ZipFile(compiled)) {
+			return readDexFiles(zip).values();
+		}
+	}
+
+	private static Map<String, DexBackedDexFile> readDexFiles(ZipFile zip) throws IOException {
+		Map<String, DexBackedDexFile> dexFiles = new LinkedHashMap<>();
+		Enumeration<? extends ZipEntry> entries = zip.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			if (DEX_ENTRY.matcher(entry.getName()).matches()) {
+				try (InputStream in = zip.getInputStream(entry)) {
+					dexFiles.put(entry.getName(), new DexBackedDexFile(Opcodes.getDefault(), in.readAllBytes()));
+				}
+			}
+		}
+		return dexFiles;
+	}
+
+	private static String getMethodKey(MethodReference method) {
+		return method.getName() + getDescriptor(method);
+	}
+
+	private static String getDescriptor(MethodReference method) {
+		StringBuilder sb = new StringBuilder("(");
+		for (CharSequence type : method.getParameterTypes()) {
+			sb.append(type);
+		}
+		return sb.append(')').append(method.getReturnType()).toString();
+	}
+
+	private String mapType(String type) {
+		int dimensions = 0;
+		while (type.charAt(dimensions) == '[') {
+			dimensions++;
+		}
+		if (type.charAt(dimensions) != 'L') {
+			return type;
+		}
+		return type.substring(0, dimensions) + "L"
+				+ remapper.mapClassName(type.substring(dimensions + 1, type.length() - 1)) + ";";
+	}
+
+	private static String toInternalName(String type) {
+		return type.substring(1, type.length() - 1);
+	}
+
+	private static String toClassName(String type) {
+		return toInternalName(type).replace('/', '.');
+	}
+
+	/**
+	 * Maps jadx names back to raw names. Member names are looked up after the owner and descriptor
+	 * are mapped.
+	 */
+	private final class ReverseRenameModule extends RewriterModule {
+
+		@Override
+		public Rewriter<String> getTypeRewriter(Rewriters rewriters) {
+			return DexPatcher.this::mapType;
+		}
+
+		@Override
+		public Rewriter<FieldReference> getFieldReferenceRewriter(Rewriters rewriters) {
+			return field -> {
+				String owner = mapType(field.getDefiningClass());
+				String type = mapType(field.getType());
+				return new ImmutableFieldReference(owner, remapper.mapFieldName(toInternalName(owner), field.getName(), type), type);
+			};
+		}
+
+		@Override
+		public Rewriter<MethodReference> getMethodReferenceRewriter(Rewriters rewriters) {
+			return method -> {
+				String owner = mapType(method.getDefiningClass());
+				List<String> parameterTypes = new ArrayList<>();
+				for (CharSequence type : method.getParameterTypes()) {
+					parameterTypes.add(mapType(type.toString()));
+				}
+				String returnType = mapType(method.getReturnType());
+				String descriptor = "(" + String.join("", parameterTypes) + ")" + returnType;
+				return new ImmutableMethodReference(owner, remapper.mapMethodName(toInternalName(owner), method.getName(), descriptor),
+						parameterTypes, returnType);
+			};
+		}
+	}
+}
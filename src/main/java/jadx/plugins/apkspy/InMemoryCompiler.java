@@ -0,0 +1,173 @@
+package jadx.plugins.apkspy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles sources with the compiler of the running JDK. Sources and generated class files are kept
+ * in memory, only the classpath is read from disk.
+ */
+public class InMemoryCompiler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(InMemoryCompiler.class);
+
+	private static JavaCompiler compiler;
+
+	private static boolean compilerLookupDone;
+
+	public static synchronized boolean isAvailable() {
+		if (!compilerLookupDone) {
+			compiler = ToolProvider.getSystemJavaCompiler();
+			compilerLookupDone = true;
+			if (compiler == null) {
+				LOG.info("No system java compiler available, falling back to external javac");
+			}
+		}
+		return compiler != null;
+	}
+
+	/**
+	 * @param sources   source code by full qualified class name
+	 * @param classpath libraries to compile against, missing files are skipped
+	 * @param classes   receives the generated class files by binary class name
+	 * @param out       receives compiler diagnostics as they are reported
+	 * @return true if compilation succeeded
+	 */
+	public static boolean compile(Map<String, String> sources, List<File> classpath, Map<String, byte[]> classes, OutputStream out)
+			throws IOException {
+		return compile(sources, classpath, classes, out, Collections.emptyList());
+	}
+
+	/**
+	 * @param options additional javac options
+	 */
+	public static boolean compile(Map<String, String> sources, List<File> classpath, Map<String, byte[]> classes, OutputStream out,
+			List<String> options) throws IOException {
+		if (!isAvailable()) {
+			throw new IllegalStateException("No system java compiler available");
+		}
+		Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		DiagnosticListener<JavaFileObject> listener = diagnostic -> {
+			try {
+				writer.write(formatDiagnostic(diagnostic));
+				writer.flush();
+			} catch (IOException e) {
+				LOG.warn("Could not write compiler diagnostic: ", e);
+			}
+		};
+
+		StandardJavaFileManager standardFileManager =
+				compiler.getStandardFileManager(listener, Locale.getDefault(), StandardCharsets.UTF_8);
+		standardFileManager.setLocation(StandardLocation.CLASS_PATH,
+				classpath.stream().filter(File::exists).collect(Collectors.toList()));
+
+		List<JavaFileObject> units = new ArrayList<>();
+		for (Map.Entry<String, String> entry : sources.entrySet()) {
+			units.add(new SourceFile(entry.getKey(), entry.getValue()));
+		}
+
+		try (MemoryFileManager fileManager = new MemoryFileManager(standardFileManager, classes)) {
+			List<String> compilerOptions = new ArrayList<>(Arrays.asList("-proc:none", "-encoding", "UTF-8"));
+			compilerOptions.addAll(options);
+			JavaCompiler.CompilationTask task = compiler.getTask(writer, fileManager, listener, compilerOptions, null, units);
+			boolean success = task.call();
+			writer.flush();
+			return success;
+		}
+	}
+
+	private static String formatDiagnostic(Diagnostic<? extends JavaFileObject> diagnostic) {
+		StringBuilder sb = new StringBuilder();
+		if (diagnostic.getSource() != null) {
+			sb.append(diagnostic.getSource().getName());
+			if (diagnostic.getLineNumber() != Diagnostic.NOPOS) {
+				sb.append(':').append(diagnostic.getLineNumber());
+			}
+			sb.append(": ");
+		}
+		sb.append(diagnostic.getKind().toString().toLowerCase(Locale.ROOT).replace('_', ' ')).append(": ")
+				.append(diagnostic.getMessage(Locale.getDefault())).append('\n');
+		return sb.toString();
+	}
+
+	private static final class SourceFile extends SimpleJavaFileObject {
+		private final String content;
+
+		private SourceFile(String className, String content) {
+			super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+			this.content = content;
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return content;
+		}
+	}
+
+	private static final class ClassFile extends SimpleJavaFileObject {
+		private final String className;
+		private final Map<String, byte[]> classes;
+
+		private ClassFile(String className, Map<String, byte[]> classes) {
+			super(URI.create("mem:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+			this.className = className;
+			this.classes = classes;
+		}
+
+		@Override
+		public OutputStream openOutputStream() {
+			return new ByteArrayOutputStream() {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					classes.put(className, toByteArray());
+				}
+			};
+		}
+	}
+
+	private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+		private final Map<String, byte[]> classes;
+
+		private MemoryFileManager(StandardJavaFileManager fileManager, Map<String, byte[]> classes) {
+			super(fileManager);
+			this.classes = classes;
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling)
+				throws IOException {
+			if (kind == JavaFileObject.Kind.CLASS) {
+				return new ClassFile(className, classes);
+			}
+			return super.getJavaFileForOutput(location, className, kind, sibling);
+		}
+	}
+}
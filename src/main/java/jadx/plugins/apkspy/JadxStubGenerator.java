@@ -0,0 +1,220 @@
+package jadx.plugins.apkspy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.jar.JarOutputStream;
+
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.Remapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jadx.api.plugins.input.data.annotations.EncodedValue;
+import jadx.api.plugins.input.data.attributes.JadxAttrType;
+import jadx.core.codegen.TypeGen;
+import jadx.core.dex.attributes.IAttributeNode;
+import jadx.core.dex.instructions.args.ArgType;
+import jadx.core.dex.nodes.ClassNode;
+import jadx.core.dex.nodes.FieldNode;
+import jadx.core.dex.nodes.MethodNode;
+import jadx.core.dex.nodes.RootNode;
+import jadx.core.dex.nodes.parser.SignatureParser;
+
+/**
+ * Generates stub classes from the class model of jadx. Only signatures are written, method bodies
+ * return default values. Class and member names are taken from jadx, so renames and deobfuscation
+ * are already applied.
+ */
+public class JadxStubGenerator {
+
+	private static final Logger LOG = LoggerFactory.getLogger(JadxStubGenerator.class);
+
+	private static final int CLASS_ACCESS_MASK = Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_INTERFACE
+			| Opcodes.ACC_ABSTRACT | Opcodes.ACC_SYNTHETIC | Opcodes.ACC_ANNOTATION | Opcodes.ACC_ENUM;
+
+	private final RootNode root;
+
+	private final AliasRemapper remapper;
+
+	public JadxStubGenerator(RootNode root) {
+		this.root = root;
+		Map<String, String> classNames = new HashMap<>();
+		for (ClassNode cls : root.getClasses()) {
+			classNames.put(getRawInternalName(cls), getAliasInternalName(cls));
+		}
+		this.remapper = new AliasRemapper(classNames);
+	}
+
+	/**
+	 * @param filter   selects the classes to write by internal name (with jadx names applied)
+	 * @param parallel generate classes on all available cores
+	 */
+	public void writeStubJar(File output, Predicate<String> filter, boolean parallel) throws IOException {
+		ForkJoinPool pool = parallel ? OrderedJarWriter.newPool() : null;
+		try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(output));
+				OrderedJarWriter writer = new OrderedJarWriter(jos, pool)) {
+			for (ClassNode cls : root.getClasses()) {
+				String internalName = getAliasInternalName(cls);
+				if (filter.test(internalName)) {
+					writer.submit(() -> new OrderedJarWriter.ClassFile(internalName, generateClass(cls)));
+				}
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	public byte[] generateClass(ClassNode cls) {
+		ClassWriter writer = new ClassWriter(0);
+
+		int access = cls.getAccessFlags().rawValue();
+		int classAccess = access & CLASS_ACCESS_MASK;
+		if ((access & Opcodes.ACC_PROTECTED) != 0) {
+			classAccess |= Opcodes.ACC_PUBLIC;
+		}
+		if ((access & Opcodes.ACC_INTERFACE) == 0) {
+			classAccess |= Opcodes.ACC_SUPER;
+		}
+
+		String superName = getInternalName(cls.getSuperClass());
+		if (superName == null && !"java/lang/Object".equals(getRawInternalName(cls))) {
+			superName = "java/lang/Object";
+		}
+		List<String> interfaces = new ArrayList<>();
+		for (ArgType type : cls.getInterfaces()) {
+			String name = getInternalName(type);
+			if (name != null) {
+				interfaces.add(name);
+			}
+		}
+		writer.visit(Opcodes.V1_8, classAccess, getAliasInternalName(cls), mapSignature(cls, false),
+				superName, interfaces.toArray(new String[0]));
+
+		for (FieldNode fld : cls.getFields()) {
+			writer.visitField(fld.getAccessFlags().rawValue() & 0xFFFF, fld.getFieldInfo().getAlias(),
+					remapper.mapDesc(TypeGen.signature(fld.getFieldInfo().getType())),
+					mapSignature(fld, true), getConstantValue(fld)).visitEnd();
+		}
+
+		for (MethodNode mth : cls.getMethods()) {
+			String shortId = mth.getMethodInfo().getShortId();
+			String descriptor = remapper.mapMethodDesc(shortId.substring(shortId.indexOf('(')));
+			List<String> exceptions = new ArrayList<>();
+			for (ArgType type : mth.getThrows()) {
+				String name = getInternalName(type);
+				if (name != null) {
+					exceptions.add(name);
+				}
+			}
+			int methodAccess = mth.getAccessFlags().rawValue() & 0xFFFF;
+			MethodVisitor visitor = writer.visitMethod(methodAccess, mth.getMethodInfo().getAlias(), descriptor,
+					mapSignature(mth, false), exceptions.isEmpty() ? null : exceptions.toArray(new String[0]));
+			if ((methodAccess & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0) {
+				JarGenerator.visitStubBody(visitor, descriptor);
+			}
+			visitor.visitEnd();
+		}
+
+		if (cls.isInner()) {
+			visitInnerClass(writer, cls);
+		}
+		for (ClassNode inner : cls.getInnerClasses()) {
+			visitInnerClass(writer, inner);
+		}
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private void visitInnerClass(ClassWriter writer, ClassNode inner) {
+		writer.visitInnerClass(getAliasInternalName(inner), getAliasInternalName(inner.getParentClass()),
+				inner.getClassInfo().getAliasShortName(), inner.getAccessFlags().rawValue() & 0xFFFF);
+	}
+
+	@Nullable
+	private String mapSignature(IAttributeNode node, boolean typeSignature) {
+		String signature = SignatureParser.getSignature(node);
+		if (signature == null) {
+			return null;
+		}
+		try {
+			return remapper.mapSignature(signature, typeSignature);
+		} catch (Exception e) {
+			// broken signatures are common in obfuscated apps, javac falls back to raw types
+			LOG.debug("Ignoring invalid signature: {}", signature);
+			return null;
+		}
+	}
+
+	@Nullable
+	private static Object getConstantValue(FieldNode fld) {
+		if (!fld.getAccessFlags().isStatic() || !fld.getAccessFlags().isFinal()) {
+			return null;
+		}
+		EncodedValue encodedValue = fld.get(JadxAttrType.CONSTANT_VALUE);
+		if (encodedValue == null) {
+			return null;
+		}
+		Object value = encodedValue.getValue();
+		if (value instanceof Integer || value instanceof Long || value instanceof Float || value instanceof Double
+				|| value instanceof String) {
+			return value;
+		}
+		if (value instanceof Byte || value instanceof Short) {
+			return ((Number) value).intValue();
+		}
+		if (value instanceof Character) {
+			return (int) (Character) value;
+		}
+		if (value instanceof Boolean) {
+			return (Boolean) value ? 1 : 0;
+		}
+		return null;
+	}
+
+	@Nullable
+	private String getInternalName(@Nullable ArgType type) {
+		if (type == null || !type.isObject() || type.isGenericType()) {
+			return null;
+		}
+		return remapper.map(type.getObject().replace('.', '/'));
+	}
+
+	static String getRawInternalName(ClassNode cls) {
+		return cls.getClassInfo().getRawName().replace('.', '/');
+	}
+
+	static String getAliasInternalName(ClassNode cls) {
+		if (cls.isInner()) {
+			final int length = cls.getTopParentClass().getFullName().length();
+			return cls.getFullName().substring(0, length).replace('.', '/')
+					+ cls.getFullName().substring(length).replace('.', '$');
+		}
+		return cls.getFullName().replace('.', '/');
+	}
+
+	private static final class AliasRemapper extends Remapper {
+		private final Map<String, String> classNames;
+
+		private AliasRemapper(Map<String, String> classNames) {
+			super(Opcodes.ASM9);
+			this.classNames = classNames;
+		}
+
+		@Override
+		public String map(String internalName) {
+			return classNames.getOrDefault(internalName, internalName);
+		}
+	}
+}
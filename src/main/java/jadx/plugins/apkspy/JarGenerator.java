@@ -5,19 +5,24 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
 
-import org.apache.commons.io.input.CloseShieldInputStream;
+import org.jetbrains.annotations.Nullable;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
@@ -43,6 +48,86 @@ public class JarGenerator {
 	public static void generateStubJar(File apk, File output, OutputStream out, Map<String, ClassBreakdown> classes,
 			JadxDecompiler decompiler, Path tempRoot)
 			throws IOException {
+		generateStubJar(apk, output, out, classes, decompiler, tempRoot, null, new ApkSpyOptions());
+	}
+
+	/**
+	 * @param cacheDir directory for complete stub jars, which are reused while apk and jadx names are
+	 *                 unchanged. Caching is disabled if null.
+	 */
+	public static void generateStubJar(File apk, File output, OutputStream out, Map<String, ClassBreakdown> classes,
+			JadxDecompiler decompiler, Path tempRoot, @Nullable Path cacheDir, ApkSpyOptions options)
+			throws IOException {
+		JadxASMRenamer customRemapper = new JadxASMRenamer(Opcodes.ASM9, decompiler);
+		Set<String> excludedInternalNames = toInternalNames(classes.keySet(), customRemapper);
+		Set<String> closure = options.isStubsClosureOnly() ? StubClosure.compute(decompiler.getRoot(), classes.values()) : null;
+		Predicate<String> filter = internalName -> !isExcludedClass(internalName, excludedInternalNames)
+				&& (closure == null || closure.contains(internalName));
+		if (closure != null) {
+			LOG.info("Stub jar limited to {} classes referenced by the edited code", closure.size());
+		}
+		if (cacheDir == null) {
+			writeStubJar(apk, output, out, filter, decompiler, tempRoot, options, options.isParallelStubGeneration());
+			return;
+		}
+
+		Path cachedStub = prepareCachedStubJar(apk, out, decompiler, tempRoot, cacheDir, options, options.isParallelStubGeneration());
+		try (JarInputStream jis = new JarInputStream(new FileInputStream(cachedStub.toFile()));
+				JarOutputStream jos = new JarOutputStream(new FileOutputStream(output))) {
+			JarEntry entry;
+			while ((entry = jis.getNextJarEntry()) != null) {
+				String entryName = entry.getName();
+				if (entryName.endsWith(".class") && filter.test(entryName.substring(0, entryName.length() - ".class".length()))) {
+					jos.putNextEntry(new JarEntry(entryName));
+					jis.transferTo(jos);
+					jos.closeEntry();
+				}
+				jis.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Write the complete stub jar into the cache if it is missing
+	 *
+	 * @return the cached stub jar
+	 */
+	static Path prepareCachedStubJar(File apk, OutputStream out, JadxDecompiler decompiler, Path tempRoot, Path cacheDir,
+			ApkSpyOptions options, boolean parallel) throws IOException {
+		Path cachedStub = StubJarCache.getStubJarPath(cacheDir, apk, decompiler, options.isStubsFromJadxModel() ? "jadx" : "dex2jar");
+		if (Files.isRegularFile(cachedStub)) {
+			LOG.info("Reusing cached stub jar: {}", cachedStub);
+			Files.setLastModifiedTime(cachedStub, FileTime.fromMillis(System.currentTimeMillis()));
+			return cachedStub;
+		}
+		Files.createDirectories(cacheDir);
+		Path stubTemp = Files.createTempFile(cacheDir, "stub", ".tmp");
+		try {
+			writeStubJar(apk, stubTemp.toFile(), out, internalName -> true, decompiler, tempRoot, options, parallel);
+			Files.move(stubTemp, cachedStub, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(stubTemp);
+		}
+		StubJarCache.prune(cacheDir);
+		return cachedStub;
+	}
+
+	/**
+	 * @param filter selects the classes to write by internal name (with jadx names applied)
+	 */
+	private static void writeStubJar(File apk, File output, OutputStream out, Predicate<String> filter,
+			JadxDecompiler decompiler, Path tempRoot, ApkSpyOptions options, boolean parallel)
+			throws IOException {
+		if (options.isStubsFromJadxModel()) {
+			new JadxStubGenerator(decompiler.getRoot()).writeStubJar(output, filter, parallel);
+		} else {
+			writeDex2jarStubJar(apk, output, out, filter, decompiler, tempRoot, parallel);
+		}
+	}
+
+	private static void writeDex2jarStubJar(File apk, File output, OutputStream out, Predicate<String> filter,
+			JadxDecompiler decompiler, Path tempRoot, boolean parallel)
+			throws IOException {
 
 		PrintStream oldErr = System.err;
 
@@ -61,48 +146,56 @@ public class JarGenerator {
 		final JadxASMRenamer customRemapper = new JadxASMRenamer(Opcodes.ASM9, decompiler);
 		customRemapper.prepopulateNameCache();
 
+		ForkJoinPool pool = parallel ? OrderedJarWriter.newPool() : null;
 		try (JarInputStream jis = new JarInputStream(new FileInputStream(stubTemp.toFile()));
-				JarOutputStream jos = new JarOutputStream(new FileOutputStream(output))) {
+				JarOutputStream jos = new JarOutputStream(new FileOutputStream(output));
+				OrderedJarWriter writer = new OrderedJarWriter(jos, pool)) {
 
 			JarEntry entry;
 			while ((entry = jis.getNextJarEntry()) != null) {
 				final String entryName = entry.getName();
-
-				if (isExcludedClassEntry(entryName, classes.keySet(), customRemapper)) {
+				if (!entryName.endsWith(".class")) {
 					continue;
 				}
-				if (entryName.endsWith(".class")) {
-					visitClass(jis, customRemapper, entryName, jos);
-				}
-				jos.closeEntry();
-				jis.closeEntry();
+				final byte[] classFile = jis.readAllBytes();
+				writer.submit(() -> {
+					String className = customRemapper.map(entryName.substring(0, entryName.length() - ".class".length()));
+					if (!filter.test(className)) {
+						return null;
+					}
+					return visitClass(classFile, customRemapper, entryName);
+				});
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
 			}
 		}
 		stubTemp.toFile().delete();
 	}
 
-	private static boolean isExcludedClassEntry(String entryName, Set<String> excludedClasses, JadxASMRenamer customRemapper) {
-		if (entryName.endsWith(".class")) {
-			String className = customRemapper.map(entryName.substring(0, entryName.length() - ".class".length()));
-			for (String excludedClass : excludedClasses) {
-				String internalName = customRemapper.map(excludedClass.replace('.', '/'));
-				if (className.equals(internalName) || className.startsWith(internalName + "$")) {
-					return true;
-				}
+	private static Set<String> toInternalNames(Set<String> classNames, JadxASMRenamer customRemapper) {
+		Set<String> internalNames = new HashSet<>();
+		for (String className : classNames) {
+			internalNames.add(customRemapper.map(className.replace('.', '/')));
+		}
+		return internalNames;
+	}
+
+	private static boolean isExcludedClass(String internalName, Set<String> excludedInternalNames) {
+		for (String excluded : excludedInternalNames) {
+			if (internalName.equals(excluded) || internalName.startsWith(excluded + "$")) {
+				return true;
 			}
-			return false;
 		}
-		return true;
+		return false;
 	}
 
-	private static void visitClass(JarInputStream jis, JadxASMRenamer customRemapper, String entryName, JarOutputStream jos)
-			throws IOException {
+	private static OrderedJarWriter.ClassFile visitClass(byte[] classFile, JadxASMRenamer customRemapper, String entryName) {
 		ClassNode classNode = new ClassNode();
 
-		try (final InputStream classFileInputStream = CloseShieldInputStream.wrap(jis)) {
-			ClassReader classReader = new ClassReader(classFileInputStream);
-			classReader.accept(classNode, 0);
-		}
+		ClassReader classReader = new ClassReader(classFile);
+		classReader.accept(classNode, 0);
 
 		ClassWriter writer = new ClassWriter(0);
 		writer.visit(classNode.version, classNode.access, customRemapper.mapType(classNode.name),
@@ -126,41 +219,7 @@ public class JarGenerator {
 							customRemapper.mapSignature(methodNode.signature, false),
 							methodNode.exceptions.stream().map(customRemapper::mapType).toArray(String[]::new));
 
-			Type returnType = Type.getReturnType(methodNode.desc);
-
-			visitor.visitCode();
-
-			switch (returnType.getSort()) {
-				case Type.BOOLEAN:
-				case Type.CHAR:
-				case Type.BYTE:
-				case Type.SHORT:
-				case Type.INT:
-					visitor.visitInsn(Opcodes.ICONST_0);
-					visitor.visitInsn(Opcodes.IRETURN);
-					break;
-				case Type.LONG:
-					visitor.visitInsn(Opcodes.LCONST_0);
-					visitor.visitInsn(Opcodes.LRETURN);
-					break;
-				case Type.FLOAT:
-					visitor.visitInsn(Opcodes.FCONST_0);
-					visitor.visitInsn(Opcodes.FRETURN);
-					break;
-				case Type.DOUBLE:
-					visitor.visitInsn(Opcodes.DCONST_0);
-					visitor.visitInsn(Opcodes.DRETURN);
-					break;
-				case Type.VOID:
-					visitor.visitInsn(Opcodes.RETURN);
-					break;
-				default:
-					visitor.visitInsn(Opcodes.ACONST_NULL);
-					visitor.visitInsn(Opcodes.ARETURN);
-					break;
-			}
-
-			visitor.visitMaxs(20, 20);
+			visitStubBody(visitor, methodNode.desc);
 			visitor.visitEnd();
 		}
 
@@ -173,7 +232,47 @@ public class JarGenerator {
 		final String internalClassName = entryName.substring(0, entryName.length() - 6);
 		final String newClassName = customRemapper.map(internalClassName);
 
-		jos.putNextEntry(new JarEntry(newClassName + ".class"));
-		jos.write(writer.toByteArray());
+		return new OrderedJarWriter.ClassFile(newClassName, writer.toByteArray());
+	}
+
+	/**
+	 * Method body of a stub method, returns the default value of the return type
+	 */
+	static void visitStubBody(MethodVisitor visitor, String descriptor) {
+		Type returnType = Type.getReturnType(descriptor);
+
+		visitor.visitCode();
+
+		switch (returnType.getSort()) {
+			case Type.BOOLEAN:
+			case Type.CHAR:
+			case Type.BYTE:
+			case Type.SHORT:
+			case Type.INT:
+				visitor.visitInsn(Opcodes.ICONST_0);
+				visitor.visitInsn(Opcodes.IRETURN);
+				break;
+			case Type.LONG:
+				visitor.visitInsn(Opcodes.LCONST_0);
+				visitor.visitInsn(Opcodes.LRETURN);
+				break;
+			case Type.FLOAT:
+				visitor.visitInsn(Opcodes.FCONST_0);
+				visitor.visitInsn(Opcodes.FRETURN);
+				break;
+			case Type.DOUBLE:
+				visitor.visitInsn(Opcodes.DCONST_0);
+				visitor.visitInsn(Opcodes.DRETURN);
+				break;
+			case Type.VOID:
+				visitor.visitInsn(Opcodes.RETURN);
+				break;
+			default:
+				visitor.visitInsn(Opcodes.ACONST_NULL);
+				visitor.visitInsn(Opcodes.ARETURN);
+				break;
+		}
+
+		visitor.visitMaxs(20, 20);
 	}
 }
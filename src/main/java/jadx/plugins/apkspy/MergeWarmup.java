@@ -0,0 +1,145 @@
+package jadx.plugins.apkspy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brut.androlib.exceptions.AndrolibException;
+
+import jadx.api.JadxDecompiler;
+import jadx.api.plugins.pass.JadxPassInfo;
+import jadx.api.plugins.pass.impl.SimpleJadxPassInfo;
+import jadx.api.plugins.pass.types.JadxAfterLoadPass;
+import jadx.plugins.apkspy.utils.Util;
+
+/**
+ * Fills the caches used by compile and merge on a low priority thread after an apk is loaded: the
+ * complete stub jar, the decoded original apk, its smali with jadx names applied and the name
+ * indexes of the smali remapper. Cancelling stops the warm-up after the current step.
+ */
+public class MergeWarmup implements JadxAfterLoadPass {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MergeWarmup.class);
+
+	private final ApkSpyOptions options;
+
+	private final Supplier<Path> tempDir;
+
+	private volatile Thread thread;
+
+	private volatile String progress = "Not started";
+
+	/**
+	 * @param tempDir plugin temp directory, the caches are located there
+	 */
+	public MergeWarmup(ApkSpyOptions options, Supplier<Path> tempDir) {
+		this.options = options;
+		this.tempDir = tempDir;
+	}
+
+	@Override
+	public JadxPassInfo getInfo() {
+		return new SimpleJadxPassInfo("ApkSpyMergeWarmup", "Prepare stub jar and decoded apk for apkSpy in background");
+	}
+
+	@Override
+	public void init(JadxDecompiler decompiler) {
+		cancel();
+		if (!options.isBackgroundWarmup() || decompiler.getArgs().getInputFiles().size() != 1) {
+			return;
+		}
+		File apk = decompiler.getArgs().getInputFiles().get(0);
+		if (!apk.getName().endsWith(".apk")) {
+			return;
+		}
+		Thread warmup = new Thread(() -> run(decompiler, apk), "apkspy-warmup");
+		warmup.setDaemon(true);
+		warmup.setPriority(Thread.MIN_PRIORITY);
+		thread = warmup;
+		warmup.start();
+	}
+
+	public void cancel() {
+		Thread running = thread;
+		if (running != null) {
+			running.interrupt();
+			thread = null;
+		}
+	}
+
+	public boolean isRunning() {
+		Thread running = thread;
+		return running != null && running.isAlive();
+	}
+
+	public String getProgress() {
+		return progress;
+	}
+
+	private void run(JadxDecompiler decompiler, File apk) {
+		long start = System.currentTimeMillis();
+		Path baseTempDir = tempDir.get();
+		Path workDir = null;
+		try {
+			workDir = Files.createTempDirectory(baseTempDir, "warmup");
+			if (step("Generating stub jar")) {
+				// single threaded, jadx is still working on the ui
+				JarGenerator.prepareCachedStubJar(apk, OutputStream.nullOutputStream(), decompiler, workDir,
+						ApkSpy.getStubCacheDir(baseTempDir), options, false);
+			}
+			if (options.getMergeBackend() == ApkSpyOptions.MergeBackend.APKTOOL && options.isCacheDecodedApk()
+					&& step("Decoding original apk")) {
+				Path decoded = DecodedApkCache.prepare(ApkSpy.getDecodedApkCacheDir(baseTempDir), apk.toPath(),
+						ApkSpy.SKIP_ORIGINAL_RESOURCES);
+				if (!options.isTargetedSmaliRemap() && step("Remapping smali")) {
+					DecodedApkCache.prepareRemappedSmali(ApkSpy.getDecodedApkCacheDir(baseTempDir), decoded, decompiler, 1);
+				}
+			}
+			if (usesReverseRemapper() && step("Indexing names")) {
+				SmaliRemapperCache.get(decompiler, true);
+			}
+			if (!Thread.currentThread().isInterrupted()) {
+				progress = "Finished in " + (System.currentTimeMillis() - start) / 1000 + " s";
+				LOG.info("ApkSpy warm-up finished in {} ms", System.currentTimeMillis() - start);
+			} else {
+				progress = "Cancelled";
+			}
+		} catch (IOException | AndrolibException | RuntimeException e) {
+			progress = "Failed: " + e.getMessage();
+			LOG.warn("ApkSpy warm-up failed: ", e);
+		} finally {
+			if (workDir != null) {
+				Util.attemptDelete(workDir.toFile());
+			}
+		}
+	}
+
+	/**
+	 * Compiled changes are mapped back to the names of the apk by dex patching and targeted smali
+	 * remapping
+	 */
+	private boolean usesReverseRemapper() {
+		return options.getBuildBackend() == ApkSpyOptions.BuildBackend.D8
+				|| options.getMergeBackend() == ApkSpyOptions.MergeBackend.DEX_PATCH
+				|| options.isTargetedSmaliRemap();
+	}
+
+	/**
+	 * @return false if the warm-up was cancelled
+	 */
+	private boolean step(String name) {
+		if (Thread.currentThread().isInterrupted()) {
+			LOG.info("ApkSpy warm-up cancelled");
+			return false;
+		}
+		progress = name;
+		LOG.info("ApkSpy warm-up: {}", name);
+		return true;
+	}
+}
@@ -0,0 +1,86 @@
+package jadx.plugins.apkspy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes class files into a jar in submission order. Class generation runs on a fork join pool if
+ * available, only a bounded number of results is kept in memory.
+ */
+class OrderedJarWriter implements Closeable {
+
+	private final JarOutputStream jos;
+
+	@Nullable
+	private final ForkJoinPool pool;
+
+	private final int window;
+
+	private final Deque<ForkJoinTask<ClassFile>> pending = new ArrayDeque<>();
+
+	private final Set<String> written = new HashSet<>();
+
+	/**
+	 * @param pool runs class generation, classes are generated on the calling thread if null
+	 */
+	OrderedJarWriter(JarOutputStream jos, @Nullable ForkJoinPool pool) {
+		this.jos = jos;
+		this.pool = pool;
+		this.window = pool == null ? 1 : pool.getParallelism() * 16;
+	}
+
+	/**
+	 * @param generator returns the class file to write or null to skip it
+	 */
+	void submit(Supplier<ClassFile> generator) throws IOException {
+		if (pool == null) {
+			write(generator.get());
+			return;
+		}
+		pending.add(pool.submit(generator::get));
+		if (pending.size() >= window) {
+			write(pending.poll().join());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		while (!pending.isEmpty()) {
+			write(pending.poll().join());
+		}
+	}
+
+	private void write(@Nullable ClassFile classFile) throws IOException {
+		if (classFile == null || !written.add(classFile.internalName)) {
+			return;
+		}
+		jos.putNextEntry(new JarEntry(classFile.internalName + ".class"));
+		jos.write(classFile.content);
+		jos.closeEntry();
+	}
+
+	static ForkJoinPool newPool() {
+		return new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	static final class ClassFile {
+		private final String internalName;
+		private final byte[] content;
+
+		ClassFile(String internalName, byte[] content) {
+			this.internalName = internalName;
+			this.content = content;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package jadx.plugins.apkspy;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jadx.api.JadxDecompiler;
+import jadx.plugins.apkspy.rename.smali.SmaliRemapper;
+
+/**
+ * Name indexes of {@link SmaliRemapper} shared by all merges of a decompiler. The indexes depend on
+ * the names assigned by jadx, they are rebuilt after a rename.
+ */
+public class SmaliRemapperCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SmaliRemapperCache.class);
+
+	private static final Map<JadxDecompiler, Entry> ENTRIES = new WeakHashMap<>();
+
+	/**
+	 * @param reverse map jadx names back to the raw names of the apk
+	 * @return remapper with prepopulated name cache, shared between threads
+	 */
+	static SmaliRemapper get(JadxDecompiler decompiler, boolean reverse) {
+		String renameState = StubJarCache.renameStateDigest(decompiler);
+		Entry entry;
+		synchronized (ENTRIES) {
+			entry = ENTRIES.get(decompiler);
+			if (entry == null || !entry.renameState.equals(renameState)) {
+				entry = new Entry(renameState);
+				ENTRIES.put(decompiler, entry);
+			}
+		}
+		return entry.get(decompiler, reverse);
+	}
+
+	private static final class Entry {
+		private final String renameState;
+		private SmaliRemapper remapper;
+		private SmaliRemapper reverseRemapper;
+
+		private Entry(String renameState) {
+			this.renameState = renameState;
+		}
+
+		/**
+		 * Built under the lock, a merge waits for an index the warm-up is building
+		 */
+		private synchronized SmaliRemapper get(JadxDecompiler decompiler, boolean reverse) {
+			SmaliRemapper cached = reverse ? reverseRemapper : remapper;
+			if (cached != null) {
+				return cached;
+			}
+			long start = System.currentTimeMillis();
+			SmaliRemapper created = new SmaliRemapper(decompiler, reverse);
+			created.prepopulateNameCache();
+			LOG.debug("Built {}smali name index in {} ms", reverse ? "reverse " : "", System.currentTimeMillis() - start);
+			if (reverse) {
+				reverseRemapper = created;
+			} else {
+				remapper = created;
+			}
+			return created;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package jadx.plugins.apkspy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.Nullable;
+
+import jadx.core.dex.instructions.args.ArgType;
+import jadx.core.dex.nodes.ClassNode;
+import jadx.core.dex.nodes.FieldNode;
+import jadx.core.dex.nodes.MethodNode;
+import jadx.core.dex.nodes.RootNode;
+import jadx.plugins.apkspy.model.ClassBreakdown;
+
+/**
+ * Computes the classes needed to compile edited sources: all classes named in the sources and
+ * everything reachable from them through super types, interfaces, type parameter bounds and member
+ * signatures.
+ */
+public class StubClosure {
+
+	private static final Pattern IDENTIFIER = Pattern.compile("[\\p{javaJavaIdentifierStart}][\\p{javaJavaIdentifierPart}]*");
+
+	private final RootNode root;
+
+	private final Set<ClassNode> visited = new HashSet<>();
+
+	private final Deque<ClassNode> queue = new ArrayDeque<>();
+
+	private StubClosure(RootNode root) {
+		this.root = root;
+	}
+
+	/**
+	 * @return internal names (with jadx names applied) of all classes in the closure
+	 */
+	public static Set<String> compute(RootNode root, Collection<ClassBreakdown> sources) {
+		StubClosure closure = new StubClosure(root);
+		Map<String, List<ClassNode>> classesByName = indexByShortName(root);
+		for (ClassBreakdown source : sources) {
+			Matcher matcher = IDENTIFIER.matcher(source.toString());
+			while (matcher.find()) {
+				List<ClassNode> named = classesByName.get(matcher.group());
+				if (named != null) {
+					named.forEach(closure::add);
+				}
+			}
+		}
+		closure.process();
+
+		Set<String> internalNames = new HashSet<>();
+		for (ClassNode cls : closure.visited) {
+			internalNames.add(JadxStubGenerator.getAliasInternalName(cls));
+		}
+		return internalNames;
+	}
+
+	/**
+	 * Names in the source may be simple or qualified, so index by short name only and accept some
+	 * false positives.
+	 */
+	private static Map<String, List<ClassNode>> indexByShortName(RootNode root) {
+		Map<String, List<ClassNode>> classesByName = new HashMap<>();
+		for (ClassNode cls : root.getClasses()) {
+			classesByName.computeIfAbsent(cls.getClassInfo().getAliasShortName(), k -> new ArrayList<>()).add(cls);
+		}
+		return classesByName;
+	}
+
+	private void process() {
+		ClassNode cls;
+		while ((cls = queue.poll()) != null) {
+			add(cls.getParentClass());
+			add(cls.getSuperClass());
+			cls.getInterfaces().forEach(this::add);
+			// declared type parameters carry their bounds, type variables at use sites usually don't
+			cls.getGenericTypeParameters().forEach(this::add);
+			for (FieldNode fld : cls.getFields()) {
+				add(fld.getType());
+			}
+			for (MethodNode mth : cls.getMethods()) {
+				mth.getTypeParameters().forEach(this::add);
+				add(mth.getReturnType());
+				mth.getArgTypes().forEach(this::add);
+				mth.getThrows().forEach(this::add);
+			}
+		}
+	}
+
+	private void add(@Nullable ArgType type) {
+		if (type == null) {
+			return;
+		}
+		if (type.isArray()) {
+			add(type.getArrayRootElement());
+		} else if (type.isGenericType()) {
+			List<ArgType> extendTypes = type.getExtendTypes();
+			if (extendTypes != null) {
+				extendTypes.forEach(this::add);
+			}
+		} else if (type.isObject()) {
+			add(root.resolveClass(ArgType.object(type.getObject())));
+			List<ArgType> genericTypes = type.getGenericTypes();
+			if (genericTypes != null) {
+				genericTypes.forEach(this::add);
+			}
+			add(type.getWildcardType());
+		}
+	}
+
+	private void add(@Nullable ClassNode cls) {
+		if (cls != null && visited.add(cls)) {
+			queue.add(cls);
+		}
+	}
+}
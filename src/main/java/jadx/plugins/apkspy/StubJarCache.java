@@ -0,0 +1,90 @@
+package jadx.plugins.apkspy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jadx.api.JadxDecompiler;
+import jadx.core.dex.nodes.ClassNode;
+import jadx.core.dex.nodes.FieldNode;
+import jadx.core.dex.nodes.MethodNode;
+import jadx.plugins.apkspy.utils.Util;
+
+/**
+ * On-disk cache of complete stub jars (no excluded classes). A stub jar depends on the input apk and
+ * the names assigned by jadx, so both are part of the cache key.
+ */
+public class StubJarCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StubJarCache.class);
+
+	private static final String CACHE_VERSION = "1";
+
+	private static final int MAX_CACHED_JARS = 4;
+
+	/**
+	 * @param variant distinguishes stub jars of different generators
+	 */
+	public static Path getStubJarPath(Path cacheDir, File apk, JadxDecompiler decompiler, String variant) throws IOException {
+		String apkDigest = Util.sha256(apk.toPath());
+		String key = CACHE_VERSION + "-" + variant + "-" + apkDigest.substring(0, 32) + "-"
+				+ renameStateDigest(decompiler).substring(0, 32);
+		return cacheDir.resolve(key + ".jar");
+	}
+
+	/**
+	 * Digest over all class, method and field aliases
+	 */
+	static String renameStateDigest(JadxDecompiler decompiler) {
+		MessageDigest md = Util.newSha256();
+		for (ClassNode cls : decompiler.getRoot().getClasses()) {
+			update(md, cls.getClassInfo().getAliasFullName());
+			for (MethodNode mth : cls.getMethods()) {
+				update(md, mth.getMethodInfo().getAlias());
+			}
+			for (FieldNode fld : cls.getFields()) {
+				update(md, fld.getFieldInfo().getAlias());
+			}
+		}
+		return Util.toHex(md.digest());
+	}
+
+	private static void update(MessageDigest md, String value) {
+		md.update(value.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+	}
+
+	/**
+	 * Keep only the most recently used stub jars
+	 */
+	public static void prune(Path cacheDir) {
+		try (Stream<Path> files = Files.list(cacheDir)) {
+			List<Path> jars = files.filter(path -> path.getFileName().toString().endsWith(".jar"))
+					.sorted(Comparator.comparingLong(StubJarCache::lastModified).reversed())
+					.collect(Collectors.toList());
+			for (Path jar : jars.subList(Math.min(MAX_CACHED_JARS, jars.size()), jars.size())) {
+				Files.deleteIfExists(jar);
+			}
+		} catch (IOException e) {
+			LOG.warn("Could not prune stub jar cache: ", e);
+		}
+	}
+
+	private static long lastModified(Path path) {
+		try {
+			return Files.getLastModifiedTime(path).toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package jadx.plugins.apkspy.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.Modifier;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.BodyDeclaration;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.FieldDeclaration;
+import com.github.javaparser.ast.body.InitializerDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.expr.AnnotationExpr;
+import com.github.javaparser.ast.type.ClassOrInterfaceType;
+
+import jadx.plugins.apkspy.utils.Util;
+
+/**
+ * Builds a {@link ClassBreakdown} from a parsed compilation unit. Each member is printed on its own
+ * with the formatter of {@link Util#formatSources(String)}, so the parts are the same as breaking
+ * down the formatted source without parsing it a second time.
+ */
+class AstBreakdown {
+
+	/**
+	 * @return null if the first type is not a class or interface
+	 */
+	static ClassBreakdown breakdown(String className, String simpleName, CompilationUnit cu) {
+		if (cu.getTypes().isEmpty() || !(cu.getType(0) instanceof ClassOrInterfaceDeclaration)) {
+			return null;
+		}
+		StringBuilder imports = new StringBuilder();
+		cu.getPackageDeclaration().ifPresent(pkg -> imports.append("package ").append(pkg.getNameAsString()).append(";\n\n"));
+		for (ImportDeclaration importDeclaration : cu.getImports()) {
+			appendLines(imports, Util.formatNode(importDeclaration), true);
+		}
+		if (!cu.getImports().isEmpty()) {
+			imports.append('\n');
+		}
+		return breakdown(className, simpleName, imports, (ClassOrInterfaceDeclaration) cu.getType(0));
+	}
+
+	private static ClassBreakdown breakdown(String className, String simpleName, StringBuilder imports,
+			ClassOrInterfaceDeclaration type) {
+		// comment and annotations are located before the declaration line like the imports
+		type.getComment().ifPresent(comment -> appendLines(imports, Util.formatNode(comment), true));
+		for (AnnotationExpr annotation : type.getAnnotations()) {
+			appendLines(imports, Util.formatNode(annotation), true);
+		}
+		String classDeclaration = getDeclaration(type);
+		if (simpleName == null) {
+			simpleName = ClassBreakdown.parseSimpleName(classDeclaration + " {");
+		}
+
+		StringBuilder memberVariables = new StringBuilder();
+		List<JavaMethod> methods = new ArrayList<>();
+		List<ClassBreakdown> innerClasses = new ArrayList<>();
+		for (BodyDeclaration<?> member : type.getMembers()) {
+			if (member instanceof FieldDeclaration
+					|| member instanceof MethodDeclaration && ((MethodDeclaration) member).getBody().isEmpty()) {
+				appendLines(memberVariables, Util.formatNode(member), false);
+			} else if (member instanceof InitializerDeclaration && ((InitializerDeclaration) member).isStatic()) {
+				// static blocks are dropped like by the text breakdown
+				continue;
+			} else if (member instanceof ClassOrInterfaceDeclaration && !((ClassOrInterfaceDeclaration) member).isInterface()) {
+				innerClasses.add(breakdown(null, null, new StringBuilder(), (ClassOrInterfaceDeclaration) member));
+			} else {
+				// methods, constructors, instance initializers and other inner types
+				StringBuilder content = new StringBuilder();
+				appendLines(content, Util.formatNode(member), false);
+				methods.add(new JavaMethod(content.toString().trim()));
+			}
+		}
+		return new ClassBreakdown(imports.toString(), classDeclaration, className, simpleName, memberVariables.toString(),
+				methods, innerClasses);
+	}
+
+	private static String getDeclaration(ClassOrInterfaceDeclaration type) {
+		StringBuilder sb = new StringBuilder();
+		for (Modifier modifier : type.getModifiers()) {
+			sb.append(modifier.getKeyword().asString()).append(' ');
+		}
+		sb.append(type.isInterface() ? "interface " : "class ").append(type.getNameAsString());
+		if (!type.getTypeParameters().isEmpty()) {
+			appendNodes(sb.append('<'), type.getTypeParameters()).append('>');
+		}
+		appendTypes(sb, " extends ", type.getExtendedTypes());
+		appendTypes(sb, " implements ", type.getImplementedTypes());
+		return sb.toString();
+	}
+
+	private static void appendTypes(StringBuilder sb, String keyword, NodeList<ClassOrInterfaceType> types) {
+		if (!types.isEmpty()) {
+			appendNodes(sb.append(keyword), types);
+		}
+	}
+
+	private static StringBuilder appendNodes(StringBuilder sb, NodeList<? extends Node> nodes) {
+		for (int i = 0; i < nodes.size(); i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(nodes.get(i));
+		}
+		return sb;
+	}
+
+	/**
+	 * Appends the non empty lines of a printed node without trailing whitespace
+	 *
+	 * @param trim also remove the indentation, like for the lines before the declaration
+	 */
+	private static void appendLines(StringBuilder sb, String printed, boolean trim) {
+		for (String line : printed.split("\r?\n")) {
+			String stripped = trim ? line.trim() : StringUtils.stripEnd(line, null);
+			if (!stripped.isEmpty()) {
+				sb.append(stripped).append('\n');
+			}
+		}
+	}
+
+	private AstBreakdown() {
+	}
+}
@@ -1,6 +1,7 @@
 package jadx.plugins.apkspy.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -8,11 +9,17 @@ import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 
+import com.github.javaparser.ast.CompilationUnit;
+
 import jadx.plugins.apkspy.model.DiffMatchPatch.Diff;
 import jadx.plugins.apkspy.utils.ClassBreakdownUtils;
+import jadx.plugins.apkspy.utils.Util;
 
 public class ClassBreakdown implements Cloneable {
 	public static final int BLOCK_STATIC = 4;
+	private static final Pattern SIMPLE_NAME = Pattern.compile(".*(class|interface|enum|@interface) (.+?) .*");
+	private static final Pattern DECLARATION = Pattern.compile("(.*?)(class|interface|enum|@interface) (.+?) (.+)");
+	private static final String INDENT = "    ";
 	private String className;
 	private String simpleName;
 	private String imports;
@@ -21,6 +28,7 @@ public class ClassBreakdown implements Cloneable {
 	private List<JavaMethod> changedMethods;
 	private List<JavaMethod> methods;
 	private List<ClassBreakdown> innerClasses;
+	private List<ClassSource> innerClassSources;
 	private List<MemberInfo> uninitializedFinalMembers;
 
 	/**
@@ -30,52 +38,75 @@ public class ClassBreakdown implements Cloneable {
 	 * @return
 	 */
 	public static ClassBreakdown breakdown(String className, String simpleName, String content) {
-		String[] split = content.split("\n");
+		return parse(className, simpleName, new ClassSource(content.split("\n")));
+	}
+
+	/**
+	 * Breaks down a parsed class, the members are printed from the syntax tree instead of formatting
+	 * and parsing the complete source again.
+	 */
+	public static ClassBreakdown breakdown(String className, String simpleName, CompilationUnit cu) {
+		ClassBreakdown breakdown = AstBreakdown.breakdown(className, simpleName, cu);
+		return breakdown != null ? breakdown : breakdown(className, simpleName, Util.formatNode(cu));
+	}
+
+	/**
+	 * @param line declaration line of a class
+	 */
+	static String parseSimpleName(String line) {
+		Matcher m = SIMPLE_NAME.matcher(line);
+		return m.find() ? m.group(2) : null;
+	}
 
-		String imports = "";
+	/**
+	 * Single pass over the lines of a class. Blocks are recorded as line indexes, inner classes keep
+	 * them as view and are parsed on first access.
+	 */
+	private static ClassBreakdown parse(String className, String simpleName, ClassSource source) {
+		StringBuilder imports = new StringBuilder();
 		String classDeclaration = "";
-		String memberVariables = "";
+		StringBuilder memberVariables = new StringBuilder();
 		List<JavaMethod> methods = new ArrayList<>();
-		List<ClassBreakdown> innerClasses = new ArrayList<>();
-		String currentBlock = "";
+		List<ClassSource> innerClasses = new ArrayList<>();
+		int[] block = new int[16];
+		int blockSize = 0;
 		int blockType = 0;
 		boolean allowRoot = true;
-		for (String line : split) {
+		for (int i = 0; i < source.size(); i++) {
+			String line = source.line(i);
 			if (allowRoot) {
 				if (!line.startsWith(" ")) {
 					if (line.contains("class ") || line.contains("interface") || line.contains("enum ")
 							|| line.contains("@interface ")) {
 						classDeclaration = line.substring(0, line.indexOf("{")).trim();
 						if (simpleName == null) {
-							Matcher m = Pattern.compile(".*(class|interface|enum|@interface) (.+?) .*").matcher(line);
-							if (m.find()) {
-								simpleName = m.group(2);
-							}
+							simpleName = parseSimpleName(line);
 						}
 						allowRoot = false;
 					} else {
-						imports += line.trim() + "\n";
+						imports.append(line.trim()).append('\n');
 					}
 				}
 			} else {
 				if (line.startsWith("    ") && !line.startsWith("     ")) {
-					if (line.trim().equals("}")) {
+					String trimmed = line.trim();
+					if (trimmed.equals("}")) {
 						if (blockType == 1) {
-							methods.add(new JavaMethod(currentBlock.trim() + "\n}"));
+							methods.add(new JavaMethod(source.text(block, blockSize).trim() + "\n}"));
 						} else if (blockType == 2) {
-							innerClasses.add(ClassBreakdown.breakdown(null, null, currentBlock.trim() + "\n}"));
+							innerClasses.add(source.inner(block, blockSize));
 						}
-						currentBlock = "";
+						blockSize = 0;
 						blockType = 0;
-					} else if (line.trim().equals("static {")) {
-						currentBlock = "";
+					} else if (trimmed.equals("static {")) {
+						blockSize = 0;
 						blockType = BLOCK_STATIC;
-					} else if (line.trim().equals("};") && blockType == 3) {
-						memberVariables += currentBlock + "};\n";
-						currentBlock = "";
+					} else if (trimmed.equals("};") && blockType == 3) {
+						memberVariables.append(source.text(block, blockSize)).append("};\n");
+						blockSize = 0;
 						blockType = 0;
-					} else if (line.trim().endsWith(";")) {
-						memberVariables += line.trim() + "\n";
+					} else if (trimmed.endsWith(";")) {
+						memberVariables.append(trimmed).append('\n');
 					} else {
 						if (line.contains("new ")) {
 							blockType = 3;
@@ -84,26 +115,34 @@ public class ClassBreakdown implements Cloneable {
 						} else {
 							blockType = 1;
 						}
-						currentBlock += StringUtils.stripEnd(line.substring(4), "\r\n ") + "\n";
+						block = addLine(block, blockSize++, i);
 					}
 				} else if (line.startsWith("     ")) {
-					currentBlock += StringUtils.stripEnd(line.substring(4), "\r\n ") + "\n";
+					block = addLine(block, blockSize++, i);
 				}
 			}
 		}
 
-		if (!currentBlock.isEmpty()) {
+		if (blockSize > 0) {
 			if (blockType == 1) {
-				methods.add(new JavaMethod(currentBlock));
+				methods.add(new JavaMethod(source.text(block, blockSize)));
 			} else if (blockType == 2) {
-				innerClasses.add(ClassBreakdown.breakdown(null, null, currentBlock.trim() + "\n}"));
+				innerClasses.add(source.inner(block, blockSize));
 			} else if (blockType == 3) {
-				memberVariables += currentBlock + "};\n";
+				memberVariables.append(source.text(block, blockSize)).append("};\n");
 			}
 		}
 
-		return new ClassBreakdown(imports, classDeclaration, className, simpleName, memberVariables, methods,
-				innerClasses);
+		ClassBreakdown breakdown = new ClassBreakdown(imports.toString(), classDeclaration, className, simpleName,
+				memberVariables.toString(), methods, null);
+		breakdown.innerClassSources = innerClasses;
+		return breakdown;
+	}
+
+	private static int[] addLine(int[] block, int size, int line) {
+		int[] lines = size == block.length ? Arrays.copyOf(block, size * 2) : block;
+		lines[size] = line;
+		return lines;
 	}
 
 	public ClassBreakdown(String imports, String classDeclaration, String className, String simpleName,
@@ -127,7 +166,7 @@ public class ClassBreakdown implements Cloneable {
 		this.memberVariables = old.memberVariables;
 		this.methods = new ArrayList<>(old.methods);
 		this.changedMethods = new ArrayList<>(old.changedMethods);
-		this.innerClasses = new ArrayList<>(old.innerClasses);
+		this.innerClasses = new ArrayList<>(old.getInnerClasses());
 		this.uninitializedFinalMembers = old.uninitializedFinalMembers;
 	}
 
@@ -290,16 +329,25 @@ public class ClassBreakdown implements Cloneable {
 
 	public ClassBreakdown mergeInnerClassStubs(ClassBreakdown original) {
 		ClassBreakdown breakdown = new ClassBreakdown(this);
-		breakdown.innerClasses = original.innerClasses.stream().map(ClassBreakdown::asStub).collect(Collectors.toList());
+		breakdown.innerClasses = original.getInnerClasses().stream().map(ClassBreakdown::asStub).collect(Collectors.toList());
 		return breakdown;
 	}
 
 	public List<ClassBreakdown> getInnerClasses() {
+		if (innerClassSources != null) {
+			List<ClassBreakdown> parsed = new ArrayList<>(innerClassSources.size());
+			for (ClassSource source : innerClassSources) {
+				parsed.add(parse(null, null, source));
+			}
+			innerClasses = parsed;
+			innerClassSources = null;
+		}
 		return innerClasses;
 	}
 
 	public void setInnerClasses(List<ClassBreakdown> innerClasses) {
 		this.innerClasses = innerClasses;
+		this.innerClassSources = null;
 	}
 
 	public ClassBreakdown asStub() {
@@ -310,36 +358,160 @@ public class ClassBreakdown implements Cloneable {
 
 	@Override
 	public String toString() {
-		StringBuilder str = new StringBuilder(this.imports);
+		StringBuilder sb = new StringBuilder(estimateLength());
+		render(sb, 0);
+		return sb.toString();
+	}
 
-		str.append((this.classDeclaration + " {\n").replaceAll("(.*?)(class|interface|enum|@interface) (.+?) (.+)",
-				"$1$2 " + this.simpleName + " $4"));
+	/**
+	 * Appends the source of this class. All lines after the first one are indented by {@code depth}
+	 * levels, the caller is responsible for the indentation of the first line.
+	 */
+	private void render(StringBuilder sb, int depth) {
+		appendText(sb, this.imports, depth);
+		String declaration = this.classDeclaration + " {\n";
+		appendText(sb, DECLARATION.matcher(declaration)
+				.replaceAll("$1$2 " + Matcher.quoteReplacement(String.valueOf(this.simpleName)) + " $4"), depth);
 		if (!this.memberVariables.isEmpty()) {
-			for (String member : this.memberVariables.split("\n")) {
-				str.append("    ").append(member).append('\n');
+			appendLines(sb, this.memberVariables, depth);
+			newLine(sb, depth);
+		}
+		for (ClassBreakdown innerClass : getInnerClasses()) {
+			sb.append(INDENT);
+			innerClass.render(sb, depth + 1);
+			newLine(sb, depth);
+			newLine(sb, depth);
+		}
+		for (JavaMethod method : this.methods) {
+			for (String annotation : method.getAnnotations()) {
+				sb.append(INDENT);
+				appendText(sb, annotation, depth);
+				newLine(sb, depth);
 			}
-			str.append("\n");
+			appendLines(sb, method.toString(), depth);
+			newLine(sb, depth);
 		}
-		if (!this.innerClasses.isEmpty()) {
-			for (ClassBreakdown innerClass : this.innerClasses) {
-				String toStr = innerClass.toString();
-				for (String split : toStr.split("\n")) {
-					str.append("    ").append(split).append('\n');
-				}
-				str.append("\n");
+		// the last line break is replaced by the closing brace
+		sb.setLength(sb.length() - 1 - depth * INDENT.length());
+		sb.append('}');
+	}
+
+	private int estimateLength() {
+		int length = this.imports.length() + this.classDeclaration.length() + this.memberVariables.length();
+		for (ClassBreakdown innerClass : getInnerClasses()) {
+			length += innerClass.estimateLength();
+		}
+		for (JavaMethod method : this.methods) {
+			length += method.getComments().length() + method.getMethod().length();
+		}
+		// room for indentation
+		return length + length / 4;
+	}
+
+	private static void newLine(StringBuilder sb, int depth) {
+		sb.append('\n');
+		for (int i = 0; i < depth; i++) {
+			sb.append(INDENT);
+		}
+	}
+
+	/**
+	 * Appends text and indents each line after the first one
+	 */
+	private static void appendText(StringBuilder sb, String text, int depth) {
+		if (depth == 0) {
+			sb.append(text);
+			return;
+		}
+		int from = 0;
+		int lineEnd;
+		while ((lineEnd = text.indexOf('\n', from)) != -1) {
+			sb.append(text, from, lineEnd);
+			newLine(sb, depth);
+			from = lineEnd + 1;
+		}
+		sb.append(text, from, text.length());
+	}
+
+	/**
+	 * Appends each line of the text one level deeper, trailing empty lines are dropped like with
+	 * {@link String#split(String)}
+	 */
+	private static void appendLines(StringBuilder sb, String text, int depth) {
+		if (text.isEmpty()) {
+			sb.append(INDENT);
+			newLine(sb, depth);
+			return;
+		}
+		int end = text.length();
+		while (end > 0 && text.charAt(end - 1) == '\n') {
+			end--;
+		}
+		int from = 0;
+		while (from < end) {
+			int lineEnd = text.indexOf('\n', from);
+			if (lineEnd == -1 || lineEnd > end) {
+				lineEnd = end;
 			}
+			sb.append(INDENT).append(text, from, lineEnd);
+			newLine(sb, depth);
+			from = lineEnd + 1;
 		}
-		if (!this.methods.isEmpty()) {
-			for (JavaMethod method : this.methods) {
-				for (String annotation : method.getAnnotations()) {
-					str.append("    ").append(annotation).append('\n');
-				}
-				for (String split : method.toString().split("\n")) {
-					str.append("    ").append(split).append('\n');
-				}
-				str.append("\n");
+	}
+
+	/**
+	 * Lines of a class. The lines of an inner class are the block lines of its outer class without
+	 * the block indentation, followed by the closing brace.
+	 */
+	private static final class ClassSource {
+		private final String[] lines;
+		private final ClassSource outer;
+		private final int[] outerLines;
+
+		private ClassSource(String[] lines) {
+			this.lines = lines;
+			this.outer = null;
+			this.outerLines = null;
+		}
+
+		private ClassSource(ClassSource outer, int[] outerLines) {
+			this.lines = null;
+			this.outer = outer;
+			this.outerLines = outerLines;
+		}
+
+		private int size() {
+			return outer == null ? lines.length : outerLines.length + 1;
+		}
+
+		private String line(int index) {
+			if (outer == null) {
+				return lines[index];
+			}
+			if (index == outerLines.length) {
+				return "}";
 			}
+			String line = outer.blockLine(outerLines[index]);
+			return index == 0 ? line.trim() : line;
+		}
+
+		/**
+		 * Line as part of a block, without block indentation
+		 */
+		private String blockLine(int index) {
+			return StringUtils.stripEnd(line(index).substring(4), "\r\n ");
+		}
+
+		private String text(int[] block, int size) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < size; i++) {
+				sb.append(blockLine(block[i])).append('\n');
+			}
+			return sb.toString();
+		}
+
+		private ClassSource inner(int[] block, int size) {
+			return new ClassSource(this, Arrays.copyOf(block, size));
 		}
-		return str.substring(0, str.length() - 1) + "}";
 	}
 }
@@ -2,46 +2,43 @@ package jadx.plugins.apkspy.model;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
-import org.apache.commons.lang3.StringUtils;
 import org.objectweb.asm.Type;
 
 public class SmaliBreakdown {
 	private String className;
 	private List<SmaliMethod> methods;
+	private Map<String, SmaliMethod> methodsByDeclaration;
 
+	/**
+	 * Methods are returned as views into content, which is scanned once
+	 */
 	public static SmaliBreakdown breakdown(String content) {
 		String className = "";
-		SmaliMethod method = null;
-		String methodContent = "";
-		boolean isReadingMethod = false;
 		List<SmaliMethod> methods = new ArrayList<>();
-
-		int i = 0;
-		for (String line : content.split("\n")) {
-			if (line.startsWith(".class")) {
-				line = line.trim();
+		int methodStart = -1;
+		int lineStart = 0;
+		while (lineStart < content.length()) {
+			int lineEnd = content.indexOf('\n', lineStart);
+			if (lineEnd == -1) {
+				lineEnd = content.length();
+			}
+			if (content.startsWith(".class", lineStart)) {
+				String line = content.substring(lineStart, lineEnd).trim();
 				className = line.substring(line.indexOf('L') + 1, line.length() - 1).replace('/', '.');
-			} else if (line.startsWith(".method")) {
-				isReadingMethod = true;
-				method = new SmaliMethod(i, -1, null);
-				methodContent += StringUtils.stripEnd(line, " \r\n") + "\n";
-			} else if (isReadingMethod) {
-				methodContent += StringUtils.stripEnd(line, " \r\n") + "\n";
-
-				if (line.startsWith(".end method")) {
-					method.setContent(methodContent);
-					method.setEnd(i + line.length());
-					methods.add(method);
-
-					isReadingMethod = false;
-					methodContent = "";
-					method = null;
-				}
+			} else if (content.startsWith(".method", lineStart)) {
+				methodStart = lineStart;
+			} else if (methodStart != -1 && content.startsWith(".end method", lineStart)) {
+				methods.add(SmaliMethod.view(content, methodStart, lineEnd));
+				methodStart = -1;
 			}
-			i += line.length() + 1;
+			lineStart = lineEnd + 1;
 		}
 
 		return new SmaliBreakdown(className, methods);
@@ -52,7 +49,7 @@ public class SmaliBreakdown {
 		this.methods = methods;
 	}
 
-	private String getSimpleName(Type type) {
+	private static String getSimpleName(Type type) {
 		String name = type.getClassName();
 		if (name.contains(".")) {
 			return name.substring(name.lastIndexOf('.') + 1);
@@ -61,63 +58,84 @@ public class SmaliBreakdown {
 	}
 
 	public List<SmaliMethod> getChangedMethods(ClassBreakdown fromClass) {
+		// join both sides by signature key, the first smali method with a key is used
+		Map<String, SmaliMethod> methodsByKey = new HashMap<>();
+		for (SmaliMethod smaliMethod : this.methods) {
+			String methodDeclaration = smaliMethod.getDeclaration();
+			methodDeclaration = methodDeclaration.substring(methodDeclaration.lastIndexOf(' '));
+
+			String name = methodDeclaration.substring(0, methodDeclaration.indexOf('(')).trim();
+			String descriptor = methodDeclaration.substring(methodDeclaration.indexOf('(')).trim();
+			methodsByKey.putIfAbsent(getSignatureKey(name, descriptor), smaliMethod);
+		}
+
 		List<SmaliMethod> smalis = new ArrayList<>();
+		for (JavaMethod javaMethod : fromClass.getChangedMethods()) {
+			SmaliMethod smaliMethod = methodsByKey.get(getSignatureKey(fromClass, javaMethod));
+			if (smaliMethod != null) {
+				smalis.add(smaliMethod);
+			}
+		}
+		return smalis;
+	}
 
+	/**
+	 * @return keys of all changed methods of the class
+	 */
+	public static Set<String> getChangedMethodKeys(ClassBreakdown fromClass) {
+		Set<String> keys = new HashSet<>();
 		for (JavaMethod javaMethod : fromClass.getChangedMethods()) {
-			smali: for (SmaliMethod smaliMethod : this.methods) {
-				String methodDeclaration = smaliMethod.getContent().split("\n")[0];
-				methodDeclaration = methodDeclaration.substring(methodDeclaration.lastIndexOf(' '));
-
-				String name = methodDeclaration.substring(0, methodDeclaration.indexOf('(')).trim();
-				String descriptor = methodDeclaration.substring(methodDeclaration.indexOf('(')).trim();
-
-				Type[] types = Type.getArgumentTypes(descriptor);
-				Type returnType = Type.getReturnType(descriptor);
-
-				String javaDeclaration = javaMethod.getHeader();
-				String beforeArguments = javaDeclaration.substring(0, javaDeclaration.indexOf('(')).trim();
-				String javaName = beforeArguments.substring(beforeArguments.lastIndexOf(' ') + 1);
-				int x = beforeArguments.lastIndexOf(' ', beforeArguments.lastIndexOf(' ') - 1);
-				String javaReturnType = null;
-				if (x == -1) {
-					javaReturnType = beforeArguments.substring(0, beforeArguments.lastIndexOf(' '));
-				} else {
-					javaReturnType = beforeArguments.substring(x, beforeArguments.lastIndexOf(' '));
-				}
-				if (javaName.equals(fromClass.getSimpleName()) && javaReturnType.trim().isEmpty()) {
-					javaName = "<init>";
-					javaReturnType = null;
-				} else {
-					javaReturnType = javaReturnType.trim();
-				}
-
-				List<String> javaArgumentsTypes = Arrays.stream(javaDeclaration
-						.substring(javaDeclaration.indexOf('(') + 1, javaDeclaration.lastIndexOf(')')).split(","))
-						.map(param -> param.trim().split(" ", 2)[0]).collect(Collectors.toList());
-				if (javaArgumentsTypes.size() == 1 && javaArgumentsTypes.get(0).isEmpty()) {
-					// empty arguments
-					javaArgumentsTypes = new ArrayList<String>();
-				}
-
-				String simpleReturnType = getSimpleName(returnType);
-
-				if (javaName.equals(name) && (javaReturnType == null || javaReturnType.equals(simpleReturnType))
-						&& types.length == javaArgumentsTypes.size()) {
-					for (int i = 0; i < types.length; i++) {
-						if (!javaArgumentsTypes.get(i).equals(getSimpleName(types[i]))) {
-							continue smali;
-						}
-					}
-				} else {
-					continue;
-				}
+			keys.add(getSignatureKey(fromClass, javaMethod));
+		}
+		return keys;
+	}
 
-				smalis.add(smaliMethod);
-				break;
+	/**
+	 * Signature of a compiled method with simple type names, e.g. {@code a(int,String)void}. Java
+	 * headers and compiled methods match if their keys are equal.
+	 */
+	public static String getSignatureKey(String name, String descriptor) {
+		StringBuilder sb = new StringBuilder(name).append('(');
+		Type[] types = Type.getArgumentTypes(descriptor);
+		for (int i = 0; i < types.length; i++) {
+			if (i > 0) {
+				sb.append(',');
 			}
+			sb.append(getSimpleName(types[i]));
 		}
+		return sb.append(')').append(getSimpleName(Type.getReturnType(descriptor))).toString();
+	}
 
-		return smalis;
+	/**
+	 * Signature of a java method header in the format of {@link #getSignatureKey(String, String)}
+	 */
+	public static String getSignatureKey(ClassBreakdown fromClass, JavaMethod javaMethod) {
+		String javaDeclaration = javaMethod.getHeader();
+		String beforeArguments = javaDeclaration.substring(0, javaDeclaration.indexOf('(')).trim();
+		String javaName = beforeArguments.substring(beforeArguments.lastIndexOf(' ') + 1);
+		int x = beforeArguments.lastIndexOf(' ', beforeArguments.lastIndexOf(' ') - 1);
+		String javaReturnType = null;
+		if (x == -1) {
+			javaReturnType = beforeArguments.substring(0, beforeArguments.lastIndexOf(' '));
+		} else {
+			javaReturnType = beforeArguments.substring(x, beforeArguments.lastIndexOf(' '));
+		}
+		if (javaName.equals(fromClass.getSimpleName()) && javaReturnType.trim().isEmpty()) {
+			// constructors are compiled to void methods
+			javaName = "<init>";
+			javaReturnType = "void";
+		} else {
+			javaReturnType = javaReturnType.trim();
+		}
+
+		List<String> javaArgumentsTypes = Arrays.stream(javaDeclaration
+				.substring(javaDeclaration.indexOf('(') + 1, javaDeclaration.lastIndexOf(')')).split(","))
+				.map(param -> param.trim().split(" ", 2)[0]).collect(Collectors.toList());
+		if (javaArgumentsTypes.size() == 1 && javaArgumentsTypes.get(0).isEmpty()) {
+			// empty arguments
+			javaArgumentsTypes = new ArrayList<String>();
+		}
+		return javaName + '(' + String.join(",", javaArgumentsTypes) + ')' + javaReturnType;
 	}
 
 	public List<SmaliMethod> getMethods() {
@@ -126,6 +144,7 @@ public class SmaliBreakdown {
 
 	public void setMethods(List<SmaliMethod> methods) {
 		this.methods = methods;
+		this.methodsByDeclaration = null;
 	}
 
 	public String getClassName() {
@@ -136,12 +155,17 @@ public class SmaliBreakdown {
 		this.className = className;
 	}
 
+	/**
+	 * @return the first method with the same declaration line or null
+	 */
 	public SmaliMethod getEquivalentMethod(SmaliMethod method) {
-		for (SmaliMethod subMethod : this.methods) {
-			if (subMethod.getContent().split("\n")[0].trim().equals(method.getContent().split("\n")[0].trim())) {
-				return subMethod;
+		if (methodsByDeclaration == null) {
+			Map<String, SmaliMethod> index = new HashMap<>();
+			for (SmaliMethod subMethod : methods) {
+				index.putIfAbsent(subMethod.getDeclaration(), subMethod);
 			}
+			methodsByDeclaration = index;
 		}
-		return null;
+		return methodsByDeclaration.get(method.getDeclaration());
 	}
 }
@@ -1,9 +1,16 @@
 package jadx.plugins.apkspy.model;
 
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Method of a smali class. Methods found by {@link SmaliBreakdown} are views into the parsed text,
+ * their content is only copied when requested.
+ */
 public class SmaliMethod {
 	private int start;
 	private int end;
 	private String content;
+	private String source;
 
 	public SmaliMethod(int start, int end, String content) {
 		this.start = start;
@@ -11,11 +18,21 @@ public class SmaliMethod {
 		this.content = content;
 	}
 
+	/**
+	 * @param source smali class, the method spans from start to the end of the {@code .end method} line
+	 */
+	static SmaliMethod view(String source, int start, int end) {
+		SmaliMethod method = new SmaliMethod(start, end, null);
+		method.source = source;
+		return method;
+	}
+
 	public int getStart() {
 		return start;
 	}
 
 	public void setStart(int start) {
+		getContent();
 		this.start = start;
 	}
 
@@ -24,14 +41,45 @@ public class SmaliMethod {
 	}
 
 	public void setEnd(int end) {
+		getContent();
 		this.end = end;
 	}
 
+	/**
+	 * @return method lines without trailing whitespace, each terminated by a line feed
+	 */
 	public String getContent() {
+		if (content == null && source != null) {
+			StringBuilder sb = new StringBuilder(end - start + 1);
+			int lineStart = start;
+			while (lineStart <= end) {
+				int lineEnd = source.indexOf('\n', lineStart);
+				if (lineEnd == -1 || lineEnd > end) {
+					lineEnd = end;
+				}
+				sb.append(StringUtils.stripEnd(source.substring(lineStart, lineEnd), " \r")).append('\n');
+				lineStart = lineEnd + 1;
+			}
+			content = sb.toString();
+			source = null;
+		}
 		return content;
 	}
 
 	public void setContent(String content) {
 		this.content = content;
+		this.source = null;
+	}
+
+	/**
+	 * @return first line of the method (modifiers, name and descriptor) without surrounding whitespace
+	 */
+	public String getDeclaration() {
+		if (source != null) {
+			int lineEnd = source.indexOf('\n', start);
+			return source.substring(start, lineEnd == -1 || lineEnd > end ? end : lineEnd).trim();
+		}
+		int lineEnd = content.indexOf('\n');
+		return (lineEnd == -1 ? content : content.substring(0, lineEnd)).trim();
 	}
 }
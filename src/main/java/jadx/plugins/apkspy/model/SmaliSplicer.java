@@ -0,0 +1,56 @@
+package jadx.plugins.apkspy.model;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replaces methods of a smali class in a single pass. The original is parsed once, methods are
+ * matched by their declaration line.
+ */
+public class SmaliSplicer {
+
+	/**
+	 * @param methods replacement methods, methods without an equivalent in the original are ignored
+	 * @return the original content with all matched methods replaced
+	 */
+	public static String splice(String original, List<SmaliMethod> methods) {
+		SmaliBreakdown originalSmali = SmaliBreakdown.breakdown(original);
+
+		// replacements by start offset, a later replacement of the same method wins
+		TreeMap<Integer, Replacement> replacements = new TreeMap<>();
+		for (SmaliMethod method : methods) {
+			SmaliMethod equivalent = originalSmali.getEquivalentMethod(method);
+			if (equivalent != null) {
+				replacements.put(equivalent.getStart(), new Replacement(equivalent.getEnd(), method.getContent()));
+			}
+		}
+		if (replacements.isEmpty()) {
+			return original;
+		}
+
+		int capacity = original.length();
+		for (Map.Entry<Integer, Replacement> entry : replacements.entrySet()) {
+			capacity += entry.getValue().content.length() - (entry.getValue().end - entry.getKey());
+		}
+		StringBuilder sb = new StringBuilder(capacity);
+		int pos = 0;
+		for (Map.Entry<Integer, Replacement> entry : replacements.entrySet()) {
+			sb.append(original, pos, entry.getKey());
+			sb.append(entry.getValue().content);
+			pos = entry.getValue().end;
+		}
+		sb.append(original, pos, original.length());
+		return sb.toString();
+	}
+
+	private static final class Replacement {
+		private final int end;
+		private final String content;
+
+		private Replacement(int end, String content) {
+			this.end = end;
+			this.content = content;
+		}
+	}
+}
@@ -1,9 +1,9 @@
 package jadx.plugins.apkspy.rename.jar;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.commons.Remapper;
 
@@ -12,11 +12,17 @@ import jadx.api.JavaClass;
 import jadx.api.JavaField;
 import jadx.api.JavaMethod;
 
+/**
+ * Maps raw names to jadx names. Lookups are cached in concurrent collections, so one instance can be
+ * shared by parallel stub generation.
+ */
 public class JadxASMRenamer extends Remapper {
 	private final JadxDecompiler decompiler;
-	private final Map<String, JavaClass> classMap = new HashMap<>();
+	private final Map<String, JavaClass> classMap = new ConcurrentHashMap<>();
 
-	private final Set<String> classIgnoreList = new HashSet<>();
+	private final Set<String> classIgnoreList = ConcurrentHashMap.newKeySet();
+
+	private final Map<JavaClass, Map<String, String>> memberNames = new ConcurrentHashMap<>();
 
 	public JadxASMRenamer(final int api, final JadxDecompiler decompiler) {
 		super(api);
@@ -79,36 +85,29 @@ public class JadxASMRenamer extends Remapper {
 
 	@Override
 	public String mapMethodName(final String owner, final String name, final String descriptor) {
-		if (classIgnoreList.contains(owner)) {
+		final Map<String, String> members = getMemberNames(owner);
+		if (members == null) {
 			return name;
 		}
-
-		JavaClass jadxClass = classMap.get(owner);
-		if (jadxClass == null) {
-			jadxClass =
-					decompiler.searchJavaClassByOrigFullName(owner.replace('/', '.').replace('$', '.'));
-			if (jadxClass != null) {
-				classMap.put(owner, jadxClass);
-			} else {
-				classIgnoreList.add(owner);
-				return name;
-			}
-		}
-
-		final String methodRawId = owner.replace('/', '.') + "." + name + descriptor;
-		for (final JavaMethod method : jadxClass.getMethods()) {
-			if (method.getMethodNode().getMethodInfo().getRawFullId().equals(methodRawId)) {
-				return method.getName();
-			}
-		}
-		return name;
+		return members.getOrDefault(owner.replace('/', '.') + "." + name + descriptor, name);
 	}
 
 	@Override
 	public String mapFieldName(final String owner, final String name, final String descriptor) {
-		if (classIgnoreList.contains(owner)) {
+		final Map<String, String> members = getMemberNames(owner);
+		if (members == null) {
 			return name;
 		}
+		return members.getOrDefault(owner.replace('/', '.') + "." + name + ":" + descriptor, name);
+	}
+
+	/**
+	 * Method and field names of a class by raw id, built on first access
+	 */
+	private Map<String, String> getMemberNames(final String owner) {
+		if (classIgnoreList.contains(owner)) {
+			return null;
+		}
 
 		JavaClass jadxClass = classMap.get(owner);
 		if (jadxClass == null) {
@@ -118,16 +117,20 @@ public class JadxASMRenamer extends Remapper {
 				classMap.put(owner, jadxClass);
 			} else {
 				classIgnoreList.add(owner);
-				return name;
+				return null;
 			}
 		}
+		return memberNames.computeIfAbsent(jadxClass, JadxASMRenamer::indexMembers);
+	}
 
-		final String rawId = owner.replace('/', '.') + "." + name + ":" + descriptor;
+	private static Map<String, String> indexMembers(final JavaClass jadxClass) {
+		final Map<String, String> members = new HashMap<>();
+		for (final JavaMethod method : jadxClass.getMethods()) {
+			members.putIfAbsent(method.getMethodNode().getMethodInfo().getRawFullId(), method.getName());
+		}
 		for (final JavaField field : jadxClass.getFields()) {
-			if (rawId.equals(field.getFieldNode().getFieldInfo().getRawFullId())) {
-				return field.getName();
-			}
+			members.putIfAbsent(field.getFieldNode().getFieldInfo().getRawFullId(), field.getName());
 		}
-		return name;
+		return members;
 	}
 }
@@ -2,25 +2,36 @@ package jadx.plugins.apkspy.rename.smali;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import jadx.api.JadxDecompiler;
 import jadx.api.JavaClass;
 import jadx.api.JavaField;
 import jadx.api.JavaMethod;
+import jadx.core.dex.info.FieldInfo;
+import jadx.core.dex.info.MethodInfo;
 
 public class SmaliRemapper {
+	private static final Logger LOG = LoggerFactory.getLogger(SmaliRemapper.class);
+
 	private static final Pattern METHOD_DECL_PATTERN =
 			Pattern.compile("^\\.method.*\\s+([\\w$<>]+)\\(([^)]*)\\)(L[^;]+;|[ZBCSIFJDV])");
 
@@ -35,11 +46,35 @@ public class SmaliRemapper {
 
 	private static final Pattern CLASS_PATTERN = Pattern.compile("L[^\\s;:<>()]+;");
 
-	private final Map<String, JavaClass> classMap = new HashMap<>();
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Map<String, JavaClass> classMap = new ConcurrentHashMap<>();
+
+	/**
+	 * Raw internal class name to the jadx internal name (reversed if {@link #reverse} is set)
+	 */
+	private final Map<String, String> classNames = new ConcurrentHashMap<>();
+
+	/**
+	 * Raw method and field id (as in {@code getRawFullId()}) to the jadx name. If {@link #reverse} is
+	 * set, the member name in the id is the jadx name and the value is the raw name.
+	 */
+	private final Map<String, String> memberNames = new ConcurrentHashMap<>();
+
 	private final JadxDecompiler decompiler;
 
+	private final boolean reverse;
+
 	public SmaliRemapper(final JadxDecompiler decompiler) {
+		this(decompiler, false);
+	}
+
+	/**
+	 * @param reverse map jadx names back to the raw names of the apk
+	 */
+	public SmaliRemapper(final JadxDecompiler decompiler, final boolean reverse) {
 		this.decompiler = decompiler;
+		this.reverse = reverse;
 	}
 
 	public void prepopulateNameCache() {
@@ -47,15 +82,102 @@ public class SmaliRemapper {
 		// class traversal (jadx bug?)
 		for (final JavaClass javaClass : decompiler.getClasses()) {
 			addInnerClassesToNameCache(javaClass);
-			classMap.put(javaClass.getRawName().replace('.', '/'), javaClass);
+			addToNameCache(javaClass.getRawName().replace('.', '/'), javaClass);
+		}
+	}
+
+	private void addToNameCache(final String internalName, final JavaClass javaClass) {
+		classMap.put(internalName, javaClass);
+		if (reverse) {
+			classNames.put(getAliasInternalName(javaClass), internalName);
+		} else {
+			classNames.put(internalName, getAliasInternalName(javaClass));
+		}
+		for (final JavaMethod method : javaClass.getMethods()) {
+			final MethodInfo methodInfo = method.getMethodNode().getMethodInfo();
+			addMemberName(methodInfo.getRawFullId(), methodInfo.getName(), methodInfo.getAlias());
+		}
+		for (final JavaField field : javaClass.getFields()) {
+			final FieldInfo fieldInfo = field.getFieldNode().getFieldInfo();
+			addMemberName(fieldInfo.getRawFullId(), fieldInfo.getName(), fieldInfo.getAlias());
+		}
+	}
+
+	private void addMemberName(final String rawId, final String name, final String alias) {
+		if (!reverse) {
+			memberNames.putIfAbsent(rawId, alias);
+			return;
+		}
+		// the owner never contains '(' or ':', so the first one ends the member name
+		int nameEnd = rawId.indexOf('(');
+		if (nameEnd == -1) {
+			nameEnd = rawId.indexOf(':');
+		}
+		final int nameStart = nameEnd - name.length();
+		memberNames.putIfAbsent(rawId.substring(0, nameStart) + alias + rawId.substring(nameEnd), name);
+	}
+
+	/**
+	 * @return the mapped internal name or the given name if the class is unknown
+	 */
+	public String mapClassName(final String internalName) {
+		return classNames.getOrDefault(internalName, internalName);
+	}
+
+	/**
+	 * @param owner      raw internal name of the declaring class
+	 * @param descriptor raw method descriptor
+	 * @return the mapped method name or the given name if the method is unknown
+	 */
+	public String mapMethodName(final String owner, final String name, final String descriptor) {
+		return memberNames.getOrDefault(owner.replace('/', '.') + "." + name + descriptor, name);
+	}
+
+	/**
+	 * @param owner raw internal name of the declaring class
+	 * @param type  raw field type descriptor
+	 * @return the mapped field name or the given name if the field is unknown
+	 */
+	public String mapFieldName(final String owner, final String name, final String type) {
+		return memberNames.getOrDefault(owner.replace('/', '.') + "." + name + ":" + type, name);
+	}
+
+	/**
+	 * Remap smali code of the given class, e.g. a single method
+	 *
+	 * @param currentFileClass raw internal name of the class that declares the code
+	 */
+	public String remapContent(final String content, final String currentFileClass) {
+		final StringBuilder sb = new StringBuilder(content.length() + 64);
+		int start = 0;
+		while (start < content.length()) {
+			int end = content.indexOf('\n', start);
+			if (end == -1) {
+				end = content.length();
+			}
+			sb.append(remapLine(content.substring(start, end), currentFileClass));
+			if (end < content.length()) {
+				sb.append('\n');
+			}
+			start = end + 1;
+		}
+		return sb.toString();
+	}
+
+	private static String getAliasInternalName(final JavaClass javaClass) {
+		if (javaClass.isInner()) {
+			final int length = javaClass.getTopParentClass().getFullName().length();
+			return javaClass.getFullName().substring(0, length).replace('.', '/')
+					+ javaClass.getFullName().substring(length).replace('.', '$');
 		}
+		return javaClass.getFullName().replace('.', '/');
 	}
 
 	private void addInnerClassesToNameCache(final JavaClass javaClass) {
 		if (!javaClass.getInnerClasses().isEmpty()) {
 			for (final JavaClass inner : javaClass.getInnerClasses()) {
 				final int length = inner.getTopParentClass().getRawName().length();
-				classMap.put(inner.getRawName().substring(0, length).replace('.', '/')
+				addToNameCache(inner.getRawName().substring(0, length).replace('.', '/')
 						+ inner.getRawName().substring(length).replace('.', '$'), inner);
 				addInnerClassesToNameCache(inner);
 			}
@@ -64,97 +186,129 @@ public class SmaliRemapper {
 
 	public void remapSmaliFolder(final Path smaliFolder, final Path targetBaseFolder)
 			throws IOException {
-		Files.walk(smaliFolder)
-				.filter(
-						path -> Files.isRegularFile(path) && path.getFileName().toString().endsWith(".smali"))
-				.forEach(path -> {
-					final File inputSmali = path.toAbsolutePath().toFile();
-					final String classname = path.toAbsolutePath().toString().substring(
-							smaliFolder.toAbsolutePath().toString().length() + 1,
-							path.toAbsolutePath().toString().length() - ".smali".length());
-
-					JavaClass jadxClass = classMap.get(classname);
-					if (jadxClass == null) {
-						jadxClass = decompiler
-								.searchJavaClassByOrigFullName(classname.replace("/", ".").replace("$", "."));
-						if (jadxClass != null) {
-							classMap.put(classname, jadxClass);
-						} else {
-							System.out.println("Could not resolve class " + classname);
-							return;
-						}
-					}
-					String deobfuscatedClassname;
-					if (jadxClass.isInner()) {
-						final int length = jadxClass.getTopParentClass().getFullName().length();
-						deobfuscatedClassname =
-								jadxClass.getFullName().substring(0, length).replace('.', File.separatorChar)
-										+ jadxClass.getFullName().substring(length).replace('.', '$');
-					} else {
-						deobfuscatedClassname = jadxClass.getFullName().replace('.', File.separatorChar);
-					}
-					final String inputPath = inputSmali.getAbsolutePath();
-					final String outputPath =
-							targetBaseFolder.toString() + File.separator + deobfuscatedClassname + ".smali";
-
-					final List<String> outputLines = new ArrayList<>();
-
-					try (BufferedReader reader = new BufferedReader(new FileReader(inputPath))) {
-						String line;
-						while ((line = reader.readLine()) != null) {
-							line = remapMethod(line, classname);
-							line = remapField(line, classname);
-							;
-							line = remapClass(line);
-
-							outputLines.add(line);
-						}
-
-						final File output = new File(outputPath.substring(0, outputPath.lastIndexOf('/')));
-						output.mkdirs();
-						try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputPath))) {
-							for (final String outputLine : outputLines) {
-								writer.write(outputLine);
-								writer.newLine();
-							}
-						}
-
-					} catch (final IOException e) {
-						System.err.println("Remapping failed: " + e.getMessage());
-					}
-				});
+		remapSmaliFolder(smaliFolder, targetBaseFolder, 1);
+	}
+
+	/**
+	 * @param threads number of worker threads, all available cores are used if less than 1
+	 */
+	public void remapSmaliFolder(final Path smaliFolder, final Path targetBaseFolder, final int threads)
+			throws IOException {
+		final List<Path> smaliFiles;
+		try (Stream<Path> paths = Files.walk(smaliFolder)) {
+			smaliFiles = paths
+					.filter(path -> Files.isRegularFile(path) && path.getFileName().toString().endsWith(".smali"))
+					.collect(Collectors.toList());
+		}
+
+		final int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		final long start = System.nanoTime();
+		if (parallelism == 1) {
+			smaliFiles.forEach(path -> remapSmaliFile(smaliFolder, targetBaseFolder, path));
+		} else {
+			final ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				pool.submit(() -> smaliFiles.parallelStream()
+						.forEach(path -> remapSmaliFile(smaliFolder, targetBaseFolder, path))).get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Remapping interrupted", e);
+			} catch (final ExecutionException e) {
+				throw new IOException("Remapping failed", e.getCause());
+			} finally {
+				pool.shutdown();
+			}
+		}
+		final long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		LOG.info("Remapped {} smali files in {} ms ({} files/s, {} threads)", smaliFiles.size(), millis,
+				smaliFiles.size() * 1000L / millis, parallelism);
 	}
 
-	private String remapMethod(final String line, final String currentFileClass) {
-		if (line.trim().startsWith(".method")) {
+	private void remapSmaliFile(final Path smaliFolder, final Path targetBaseFolder, final Path path) {
+		final String classname = path.toAbsolutePath().toString().substring(
+				smaliFolder.toAbsolutePath().toString().length() + 1,
+				path.toAbsolutePath().toString().length() - ".smali".length());
+
+		JavaClass jadxClass = classMap.get(classname);
+		if (jadxClass == null) {
+			jadxClass = decompiler
+					.searchJavaClassByOrigFullName(classname.replace("/", ".").replace("$", "."));
+			if (jadxClass != null) {
+				addToNameCache(classname, jadxClass);
+			} else {
+				System.out.println("Could not resolve class " + classname);
+				return;
+			}
+		}
+		final String deobfuscatedClassname = classNames.get(classname);
+		final Path outputPath = targetBaseFolder.resolve(deobfuscatedClassname + ".smali");
+
+		try {
+			Files.createDirectories(outputPath.getParent());
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8), BUFFER_SIZE);
+					BufferedWriter writer = new BufferedWriter(
+							new OutputStreamWriter(Files.newOutputStream(outputPath), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					writer.write(remapLine(line, classname));
+					writer.newLine();
+				}
+			}
+		} catch (final IOException e) {
+			System.err.println("Remapping failed: " + e.getMessage());
+		}
+	}
+
+	private String remapLine(final String line, final String currentFileClass) {
+		final int start = firstNonWhitespace(line);
+		final boolean methodDecl = line.startsWith(".method", start);
+		final boolean fieldDecl = line.startsWith(".field", start);
+		// class descriptors and member references always contain ';', declarations may not
+		if (!methodDecl && !fieldDecl && line.indexOf(';') == -1) {
+			return line;
+		}
+		if (reverse) {
+			// member ids of the reverse index contain raw class names
+			final String result = remapClass(line);
+			return remapField(remapMethod(result, methodDecl, currentFileClass), fieldDecl, currentFileClass);
+		}
+		final String result = remapMethod(line, methodDecl, currentFileClass);
+		return remapClass(remapField(result, fieldDecl, currentFileClass));
+	}
+
+	private static int firstNonWhitespace(final String line) {
+		int i = 0;
+		while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private String remapMethod(final String line, final boolean declaration, final String currentFileClass) {
+		if (declaration) {
 			final Matcher matcher = METHOD_DECL_PATTERN.matcher(line);
 			if (matcher.find()) {
 				final String methodName = matcher.group(1);
 				final String params = matcher.group(2);
 				final String returnType = matcher.group(3);
 
-				if (classMap.containsKey(currentFileClass)) {
-					final JavaClass jadxClass = classMap.get(currentFileClass);
-					final String methodRawId = currentFileClass.replace('/', '.') + "." + methodName + "("
-							+ params + ")" + returnType;
-					for (final JavaMethod method : jadxClass.getMethods()) {
-
-						if (method.getMethodNode().getMethodInfo().getRawFullId().equals(methodRawId)) {
-							// TODO: deobfuscate params, returntype here, skip remapClass for this line
-							return line.substring(0, matcher.start(1))
-									+ method.getMethodNode().getMethodInfo().getAlias() + "(" + params + ")"
-									+ returnType + line.substring(matcher.end(3));
-						}
-					}
+				final String alias = memberNames.get(currentFileClass.replace('/', '.') + "." + methodName + "("
+						+ params + ")" + returnType);
+				if (alias != null) {
+					// TODO: deobfuscate params, returntype here, skip remapClass for this line
+					return line.substring(0, matcher.start(1)) + alias + "(" + params + ")"
+							+ returnType + line.substring(matcher.end(3));
 				}
 			}
 			return line;
 		}
 
 		// method invoke or reference
+		if (!line.contains("->")) {
+			return line;
+		}
 		final Matcher matcher = METHOD_REF_PATTERN.matcher(line);
-		final StringBuilder sb = new StringBuilder();
-
 		while (matcher.find()) {
 			final String className = matcher.group(1);
 			final String methodName = matcher.group(2);
@@ -162,105 +316,73 @@ public class SmaliRemapper {
 			final String returnType = matcher.group(4);
 
 			final String key = className.substring(1, className.length() - 1);
-			if (classMap.containsKey(key)) {
-				final JavaClass jadxClass = classMap.get(key);
-				String newClassName;
-				if (jadxClass.isInner()) {
-					final int length = jadxClass.getTopParentClass().getFullName().length();
-					newClassName = "L" + jadxClass.getFullName().substring(0, length).replace('.', '/')
-							+ jadxClass.getFullName().substring(length).replace('.', '$') + ";";
-				} else {
-					newClassName = "L" + jadxClass.getFullName().replace('.', '/') + ";";
-				}
-				final String methodRawId =
-						jadxClass.getRawName() + "." + methodName + "(" + params + ")" + returnType;
-				for (final JavaMethod method : jadxClass.getMethods()) {
-					if (method.getMethodNode().getMethodInfo().getRawFullId().equals(methodRawId)) {
-						return line.substring(0, matcher.start(1)) + newClassName + "->"
-								+ method.getMethodNode().getMethodInfo().getAlias() + "(" + params + ")"
-								+ returnType + line.substring(matcher.end(4));
-					}
-				}
+			final String alias = memberNames.get(key.replace('/', '.') + "." + methodName + "(" + params + ")" + returnType);
+			if (alias != null) {
+				return line.substring(0, matcher.start(1)) + "L" + mapOwner(key) + ";->"
+						+ alias + "(" + params + ")" + returnType + line.substring(matcher.end(4));
 			}
 		}
-		matcher.appendTail(sb);
-		return sb.toString();
+		return line;
+	}
+
+	private String mapOwner(final String internalName) {
+		// in reverse mode class names are already mapped before members
+		return reverse ? internalName : classNames.get(internalName);
 	}
 
 	private String remapClass(final String line) {
 		final Matcher matcher = CLASS_PATTERN.matcher(line);
-		final StringBuilder sb = new StringBuilder();
+		StringBuilder sb = null;
 
 		while (matcher.find()) {
-			final String classToken = matcher.group();
-			final String key = classToken.substring(1, classToken.length() - 1);
-			if (classMap.containsKey(key)) {
-				final JavaClass jadxClass = classMap.get(key);
-				String newClassName;
-				if (jadxClass.isInner()) {
-					final int length = jadxClass.getTopParentClass().getFullName().length();
-					newClassName = "L" + jadxClass.getFullName().substring(0, length).replace('.', '/')
-							+ jadxClass.getFullName().substring(length).replace('.', '$') + ";";
-				} else {
-					newClassName = "L" + jadxClass.getFullName().replace('.', '/') + ";";
+			final String newClassName = classNames.get(line.substring(matcher.start() + 1, matcher.end() - 1));
+			if (newClassName != null) {
+				if (sb == null) {
+					sb = new StringBuilder(line.length() + 32);
 				}
-
-				matcher.appendReplacement(sb, Matcher.quoteReplacement(newClassName));
+				matcher.appendReplacement(sb, Matcher.quoteReplacement("L" + newClassName + ";"));
 			}
 		}
+		if (sb == null) {
+			return line;
+		}
 		matcher.appendTail(sb);
 		return sb.toString();
 	}
 
-	private String remapField(final String line, final String currentFileClass) {
-		final String trimmed = line.trim();
-
+	private String remapField(final String line, final boolean declaration, final String currentFileClass) {
 		// field declaration
-		if (trimmed.startsWith(".field")) {
+		if (declaration) {
 			final Matcher matcher = FIELD_DECL_PATTERN.matcher(line);
 			if (matcher.find()) {
-
 				final String fieldName = matcher.group(1);
 				final String fieldType = matcher.group(2);
 
-				if (classMap.containsKey(currentFileClass)) {
-					final JavaClass jadxClass = classMap.get(currentFileClass);
-					final String fieldRawId = currentFileClass.replace('/', '.') + "." + fieldName + ":" + fieldType;
-					for (final JavaField field : jadxClass.getFields()) {
-
-						if (field.getFieldNode().getFieldInfo().getFullId().equals(fieldRawId)) {
-							return line.substring(0, matcher.start(1)) + field.getName() + ":" + fieldType
-									+ line.substring(matcher.end(2));
-						}
-					}
+				final String alias = memberNames.get(currentFileClass.replace('/', '.') + "." + fieldName + ":" + fieldType);
+				if (alias != null) {
+					return line.substring(0, matcher.start(1)) + alias + ":" + fieldType
+							+ line.substring(matcher.end(2));
 				}
 			}
 		}
 
 		// field reference
+		if (!line.contains("->")) {
+			return line;
+		}
 		final Matcher matcher = FIELD_ARROW_PATTERN.matcher(line);
-		final StringBuilder sb = new StringBuilder();
-
 		while (matcher.find()) {
 			final String className = matcher.group(1);
 			final String fieldName = matcher.group(2);
 			final String fieldType = matcher.group(3);
-			final String key = className.substring(1, className.length() - 1);
-			if (classMap.containsKey(key)) {
-				final JavaClass jadxClass = classMap.get(key);
-
-				final String fieldRawId = key.replace('/', '.') + "." + fieldName + ":" + fieldType;
-				for (final JavaField field : jadxClass.getFields()) {
 
-					if (field.getFieldNode().getFieldInfo().getFullId().equals(fieldRawId)) {
-						return line.substring(0, matcher.start(1)) + "L"
-								+ field.getDeclaringClass().getFullName().replace('.', '/') + ";->"
-								+ field.getName() + ":" + fieldType + line.substring(matcher.end(3));
-					}
-				}
+			final String key = className.substring(1, className.length() - 1);
+			final String alias = memberNames.get(key.replace('/', '.') + "." + fieldName + ":" + fieldType);
+			if (alias != null) {
+				return line.substring(0, matcher.start(1)) + "L" + mapOwner(key) + ";->"
+						+ alias + ":" + fieldType + line.substring(matcher.end(3));
 			}
 		}
-		matcher.appendTail(sb);
-		return sb.toString();
+		return line;
 	}
 }
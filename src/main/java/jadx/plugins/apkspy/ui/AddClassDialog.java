@@ -31,7 +31,7 @@ public class AddClassDialog extends ApkSpyDialog {
 
 	@Override
 	protected void onSave() {
-		final ClassBreakdown breakdown = ClassBreakdown.breakdown(null, null, Util.formatSources(this.codeArea.getText()));
+		final ClassBreakdown breakdown = ClassBreakdown.breakdown(null, null, Util.parseSources(this.codeArea.getText()));
 		breakdown.setFullName(this.node.getName() + "." + breakdown.getSimpleName());
 
 		final ClassNode classNode =
@@ -60,7 +60,7 @@ public class AddClassDialog extends ApkSpyDialog {
 
 	@Override
 	protected ClassBreakdown onPrepareCompile() {
-		final ClassBreakdown breakdown = ClassBreakdown.breakdown(null, null, Util.formatSources(codeArea.getText()));
+		final ClassBreakdown breakdown = ClassBreakdown.breakdown(null, null, Util.parseSources(codeArea.getText()));
 		breakdown.setFullName(this.node.getName() + "." + breakdown.getSimpleName());
 		return breakdown;
 	}
@@ -110,7 +110,7 @@ public abstract class ApkSpyDialog extends JDialog {
 			try {
 				if (ApkSpy.lint(this.decompiler, this.pluginContext.files().getPluginTempDir(),
 						breakdown.getFullName(),
-						breakdown, options.getAndroidSdkPath(), options.getJdkLocation(), new OutputStream() {
+						breakdown, options, new OutputStream() {
 							@Override
 							public void write(final int b) {
 								System.out.print((char) b);
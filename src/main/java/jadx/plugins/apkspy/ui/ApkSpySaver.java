@@ -148,8 +148,7 @@ public class ApkSpySaver extends JDialog {
 					public void run() {
 						try {
 							boolean success = ApkSpy.merge(pluginContext.getDecompiler(),
-									saveLocation.getText(), pluginContext.files().getPluginTempDir(), options.getAndroidSdkPath(),
-									options.getJdkLocation(),
+									saveLocation.getText(), pluginContext.files().getPluginTempDir(), options,
 									"jadx", new OutputStream() {
 										@Override
 										public void write(int b) {
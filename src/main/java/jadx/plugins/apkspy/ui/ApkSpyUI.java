@@ -2,6 +2,7 @@ package jadx.plugins.apkspy.ui;
 
 import java.lang.reflect.Field;
 
+import javax.swing.JOptionPane;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreeNode;
 
@@ -19,16 +20,27 @@ import jadx.gui.ui.MainWindow;
 import jadx.gui.ui.tab.TabbedPane;
 import jadx.gui.utils.NLS;
 import jadx.plugins.apkspy.ApkSpyOptions;
+import jadx.plugins.apkspy.MergeWarmup;
 import jadx.plugins.apkspy.model.ChangeCache;
 import jadx.plugins.apkspy.utils.MethodExtractorUtils;
 
 import static jadx.api.metadata.ICodeAnnotation.AnnType;
 
 public class ApkSpyUI {
-	public static void setup(JadxPluginContext context, JadxGuiContext guiContext, ApkSpyOptions options) {
+	public static void setup(JadxPluginContext context, JadxGuiContext guiContext, ApkSpyOptions options, MergeWarmup warmup) {
 		guiContext.addMenuAction("Save APK", () -> guiContext
 				.uiRun(() -> new ApkSpySaver(guiContext.getMainFrame(), context, options).setVisible(true)));
 
+		guiContext.addMenuAction("Background preparation", () -> guiContext.uiRun(() -> {
+			String status = "Background preparation: " + warmup.getProgress();
+			if (!warmup.isRunning()) {
+				JOptionPane.showMessageDialog(guiContext.getMainFrame(), status, "apkSpy", JOptionPane.INFORMATION_MESSAGE);
+			} else if (JOptionPane.showConfirmDialog(guiContext.getMainFrame(), status + "\nCancel background preparation?", "apkSpy",
+					JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+				warmup.cancel();
+			}
+		}));
+
 		guiContext.addPopupMenuAction("Edit method", iCodeNodeRef -> iCodeNodeRef.getAnnType().equals(AnnType.METHOD), null,
 				iCodeNodeRef -> {
 					if (iCodeNodeRef.getAnnType().equals(AnnType.METHOD)) {
@@ -40,7 +40,7 @@ public class EditMethodDialog extends ApkSpyDialog {
 		final String originalCode = decompiler.getRoot().getCodeCache().get(clsNode.getFullName()).getCodeStr();
 		final ClassBreakdown original = ClassBreakdown.breakdown(clsNode.getFullName(), clsNode.getAlias(), originalCode);
 		final ClassBreakdown changed = ClassBreakdown.breakdown(clsNode.getFullName(), clsNode.getAlias(),
-				Util.formatSources(this.codeArea.getText()));
+				Util.parseSources(this.codeArea.getText()));
 
 		final ClassBreakdown completed = original.mergeImports(changed.getImports())
 				.mergeMethods(changed.getChangedMethods());
@@ -67,7 +67,7 @@ public class EditMethodDialog extends ApkSpyDialog {
 		final String originalCode = decompiler.getRoot().getCodeCache().get(clsNode.getFullName()).getCodeStr();
 		final ClassBreakdown original = ClassBreakdown.breakdown(clsNode.getFullName(), clsNode.getAlias(), originalCode);
 		final ClassBreakdown changed = ClassBreakdown.breakdown(clsNode.getFullName(), clsNode.getAlias(),
-				Util.formatSources(codeArea.getText()));
+				Util.parseSources(codeArea.getText()));
 		return this.merge(changed, original);
 	}
 }
@@ -0,0 +1,173 @@
+package jadx.plugins.apkspy.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Members of a decompiled class on the first indentation level with the range of their block. Built
+ * in two linear passes, lines and braces. Braces are matched like
+ * {@link Util#findClosingBracket(String, int)}.
+ */
+final class MemberIndex {
+
+	private static final String INDENT = "    ";
+
+	private final String text;
+	private final String separator;
+
+	private int[] lineStarts = new int[64];
+	private int lineCount;
+
+	/**
+	 * Lines outside of members as added in front of an extracted member
+	 */
+	private final StringBuilder header = new StringBuilder();
+
+	private int memberCount;
+	private int[] memberLines = new int[16];
+	private int[] memberStarts = new int[16];
+	private int[] memberOpenings = new int[16];
+	private int[] memberHeaderLengths = new int[16];
+	private int[] memberEnds;
+	/**
+	 * Maximum block end of all members up to an index, the first member containing an offset is found
+	 * by binary search on it
+	 */
+	private int[] maxEnds;
+
+	MemberIndex(String text) {
+		this.text = text;
+		this.separator = System.lineSeparator();
+		indexLines();
+		matchBraces();
+	}
+
+	private void indexLines() {
+		int start = 0;
+		while (start <= text.length()) {
+			int end = text.indexOf(separator, start);
+			if (end == -1) {
+				end = text.length();
+			}
+			addLine(start, end);
+			start = end + separator.length();
+		}
+	}
+
+	private void addLine(int start, int end) {
+		int line = lineCount;
+		lineStarts = grow(lineStarts, lineCount);
+		lineStarts[lineCount++] = start;
+
+		String str = text.substring(start, end).trim();
+		if (str.isEmpty()) {
+			return;
+		}
+		if (!text.startsWith(INDENT, start)) {
+			if (str.startsWith("package ")) {
+				str += "\n";
+			} else if (str.contains("class ")) {
+				str = "\n" + str;
+			}
+			header.append(str).append('\n');
+		} else if (!text.startsWith(" ", start + INDENT.length()) && str.endsWith("{")) {
+			memberLines = grow(memberLines, memberCount);
+			memberStarts = grow(memberStarts, memberCount);
+			memberOpenings = grow(memberOpenings, memberCount);
+			memberHeaderLengths = grow(memberHeaderLengths, memberCount);
+			memberLines[memberCount] = line;
+			memberStarts[memberCount] = start;
+			memberOpenings[memberCount] = text.lastIndexOf('{', end - 1);
+			memberHeaderLengths[memberCount] = header.length();
+			memberCount++;
+		}
+	}
+
+	private void matchBraces() {
+		memberEnds = new int[memberCount];
+		Arrays.fill(memberEnds, -1);
+		// opened blocks, member index or -1
+		int[] blocks = new int[16];
+		int depth = 0;
+		int nextMember = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '{') {
+				int member = -1;
+				if (nextMember < memberCount && memberOpenings[nextMember] == i) {
+					member = nextMember++;
+				}
+				blocks = grow(blocks, depth);
+				blocks[depth++] = member;
+			} else if (c == '}' && depth > 0) {
+				int member = blocks[--depth];
+				if (member != -1) {
+					memberEnds[member] = i;
+				}
+			}
+		}
+
+		maxEnds = new int[memberCount];
+		int maxEnd = -1;
+		for (int i = 0; i < memberCount; i++) {
+			maxEnd = Math.max(maxEnd, memberEnds[i]);
+			maxEnds[i] = maxEnd;
+		}
+	}
+
+	/**
+	 * @return index of the first member with the offset inside, or -1
+	 */
+	int findMember(int offset) {
+		int low = 0;
+		int high = memberCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (maxEnds[mid] > offset) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low < memberCount && memberStarts[low] < offset ? low : -1;
+	}
+
+	/**
+	 * Member with the lines outside of members before it, the annotations and user comment above the
+	 * member and closing braces for member and class
+	 */
+	String extractMember(int member) {
+		StringBuilder extraction = new StringBuilder(memberHeaderLengths[member] + memberEnds[member] - memberStarts[member] + 8);
+		extraction.append(header, 0, memberHeaderLengths[member]);
+
+		List<String> annotationsAndUserComments = new ArrayList<>();
+		int j = memberLines[member] - 1;
+		for (; j > 0; j--) {
+			if (line(j).trim().startsWith("@")) {
+				annotationsAndUserComments.add(line(j));
+			} else {
+				break;
+			}
+		}
+		if (j > 0 && line(j).trim().startsWith("//")) {
+			annotationsAndUserComments.add(line(j));
+		}
+		for (int i = annotationsAndUserComments.size() - 1; i >= 0; i--) {
+			extraction.append(annotationsAndUserComments.get(i)).append('\n');
+		}
+
+		extraction.append(text, memberStarts[member], memberEnds[member]);
+		extraction.append("}\n}\n");
+		return extraction.toString();
+	}
+
+	private String line(int line) {
+		int end = line + 1 < lineCount ? lineStarts[line + 1] - separator.length() : text.length();
+		return text.substring(lineStarts[line], end);
+	}
+
+	private static int[] grow(int[] array, int size) {
+		return size < array.length ? array : Arrays.copyOf(array, array.length * 2);
+	}
+}
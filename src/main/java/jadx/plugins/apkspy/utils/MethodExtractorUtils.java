@@ -2,8 +2,8 @@ package jadx.plugins.apkspy.utils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.Stack;
 
 import jadx.api.JavaMethod;
 import jadx.core.dex.info.AccessInfo;
@@ -13,64 +13,23 @@ import jadx.plugins.apkspy.model.ClassBreakdown;
 
 public final class MethodExtractorUtils {
 
+	/**
+	 * Indexes by class code, a new code cache entry of a class has a new key
+	 */
+	private static final Map<String, MemberIndex> MEMBER_INDEXES = Util.newLruCache(4);
+
 	private MethodExtractorUtils() {
 	}
 
+	/**
+	 * @param text   code of a class
+	 * @param offset position inside a member
+	 * @return the member with the class around it, or null if the offset is outside of members
+	 */
 	public static String extractMethod(final String text, final int offset) {
-		final String[] lines = text.split(System.lineSeparator());
-		final StringBuilder extraction = new StringBuilder();
-
-		int linePos = 0;
-		for (int i = 0; i < lines.length; i++) {
-			String line = lines[i];
-			final int start = linePos;
-
-			linePos += line.length();
-			linePos += System.lineSeparator().length();
-
-			String str = line.trim();
-			if (str.isEmpty()) {
-				continue;
-			}
-			if (!line.startsWith("    ")) {
-				if (str.startsWith("package ")) {
-					str += "\n";
-				} else if (str.contains("class ")) {
-					str = "\n" + str;
-				}
-
-				extraction.append(str).append('\n');
-			}
-
-			if (line.startsWith("    ") && !line.startsWith("     ") && str.endsWith("{")) {
-				final int closing = Util.findClosingBracket(text, start + line.lastIndexOf('{'));
-				if (offset > start && offset < closing) {
-					// add all annotations and user comments
-					Stack<String> annotationsAndUserComments = new Stack<>();
-					int j = i - 1;
-					for (; j > 0; j--) {
-						if (lines[j].trim().startsWith("@")) {
-							annotationsAndUserComments.push(lines[j]);
-						} else {
-							break;
-						}
-					}
-					if (j > 0 && lines[j].trim().startsWith("//")) {
-						annotationsAndUserComments.push(lines[j]);
-					}
-					while (!annotationsAndUserComments.empty()) {
-						extraction.append(annotationsAndUserComments.pop()).append('\n');
-					}
-
-					final String method = text.substring(start, closing);
-					extraction.append(method);
-					extraction.append("}\n}\n");
-					return extraction.toString();
-				}
-			}
-		}
-
-		return null;
+		final MemberIndex index = MEMBER_INDEXES.computeIfAbsent(text, MemberIndex::new);
+		final int member = index.findMember(offset);
+		return member == -1 ? null : index.extractMember(member);
 	}
 
 	/*
@@ -0,0 +1,31 @@
+package jadx.plugins.apkspy.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Keeps each write of a byte array together when several merge stages report progress at the same
+ * time.
+ */
+public class SynchronizedOutputStream extends FilterOutputStream {
+
+	public SynchronizedOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		out.write(b);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+}
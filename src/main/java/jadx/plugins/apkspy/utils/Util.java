@@ -3,20 +3,31 @@ package jadx.plugins.apkspy.utils;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseProblemException;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParserConfiguration;
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
 import com.github.javaparser.printer.DefaultPrettyPrinter;
 import com.github.javaparser.printer.configuration.DefaultPrinterConfiguration;
 
@@ -24,6 +35,17 @@ public class Util {
 
 	private static final Logger LOG = LoggerFactory.getLogger(Util.class);
 
+	private static final Map<String, String> FILE_DIGESTS = new ConcurrentHashMap<>();
+
+	private static final int SOURCE_CACHE_SIZE = 16;
+
+	private static final Map<String, CompilationUnit> PARSED_SOURCES = newLruCache(SOURCE_CACHE_SIZE);
+
+	private static final ThreadLocal<JavaParser> PARSER = ThreadLocal.withInitial(() -> new JavaParser(new ParserConfiguration()));
+
+	private static final ThreadLocal<DefaultPrettyPrinter> PRINTER =
+			ThreadLocal.withInitial(() -> new DefaultPrettyPrinter(new DefaultPrinterConfiguration()));
+
 	public static void attemptDelete(File file) {
 		try {
 			FileUtils.deleteDirectory(file);
@@ -47,17 +69,23 @@ public class Util {
 
 		Process proc = builder.start();
 
-		out.write(String.join(" ", args).getBytes(StandardCharsets.UTF_8));
-		out.write('\n');
+		out.write((String.join(" ", args) + '\n').getBytes(StandardCharsets.UTF_8));
 
-		BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-		String line;
-		while ((line = in.readLine()) != null) {
-			out.write(line.getBytes(StandardCharsets.UTF_8));
-			out.write('\n');
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+			String line;
+			while ((line = in.readLine()) != null) {
+				out.write((line + '\n').getBytes(StandardCharsets.UTF_8));
+				if (Thread.currentThread().isInterrupted()) {
+					// merge failed in another stage
+					throw new InterruptedException("Cancelled: " + args[0]);
+				}
+			}
+			return proc.waitFor();
+		} catch (InterruptedException e) {
+			proc.destroy();
+			throw e;
 		}
-
-		return proc.waitFor();
 	}
 
 	public static boolean isWindows() {
@@ -70,6 +98,44 @@ public class Util {
 						|| file.getFileName().toString().equals("adb.exe")).count() > 0;
 	}
 
+	public static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not supported", e);
+		}
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * SHA-256 of a file as hex string. Digests are remembered as long as size and modification time
+	 * of the file are unchanged.
+	 */
+	public static String sha256(Path file) throws IOException {
+		String fileKey = file.toAbsolutePath() + "|" + Files.size(file) + "|" + Files.getLastModifiedTime(file).toMillis();
+		String digest = FILE_DIGESTS.get(fileKey);
+		if (digest == null) {
+			MessageDigest md = newSha256();
+			byte[] buffer = new byte[64 * 1024];
+			try (InputStream in = Files.newInputStream(file)) {
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					md.update(buffer, 0, read);
+				}
+			}
+			digest = toHex(md.digest());
+			FILE_DIGESTS.put(fileKey, digest);
+		}
+		return digest;
+	}
+
 	public static int findClosingBracket(String expression, int index) {
 		if (expression.charAt(index) != '{') {
 			return -1;
@@ -91,12 +157,49 @@ public class Util {
 
 	// Formatter
 
+	/**
+	 * Only the parse is remembered, see {@link #parseSources(String)}
+	 */
 	public static String formatSources(final String content) {
-		CompilationUnit cu = StaticJavaParser.parse(content);
-		DefaultPrettyPrinter defaultPrettyPrinter = new DefaultPrettyPrinter();
-		DefaultPrinterConfiguration prettyPrinterConfig = new DefaultPrinterConfiguration();
-		defaultPrettyPrinter.setConfiguration(prettyPrinterConfig);
-		return formatJavaSourceForJadx(defaultPrettyPrinter.print(cu));
+		return formatNode(parseSources(content));
+	}
+
+	/**
+	 * Parses with a parser of the current thread. Units are remembered by content digest and shared
+	 * between callers, they must not be modified.
+	 */
+	public static CompilationUnit parseSources(final String content) {
+		String key = sha256(content);
+		CompilationUnit cu = PARSED_SOURCES.get(key);
+		if (cu == null) {
+			ParseResult<CompilationUnit> result = PARSER.get().parse(content);
+			if (!result.isSuccessful() || result.getResult().isEmpty()) {
+				throw new ParseProblemException(result.getProblems());
+			}
+			cu = result.getResult().get();
+			PARSED_SOURCES.put(key, cu);
+		}
+		return cu;
+	}
+
+	/**
+	 * Prints a parsed node like {@link #formatSources(String)} formats a complete source file
+	 */
+	public static String formatNode(final Node node) {
+		return formatJavaSourceForJadx(PRINTER.get().print(node));
+	}
+
+	private static String sha256(String content) {
+		return toHex(newSha256().digest(content.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	static <V> Map<String, V> newLruCache(int maxSize) {
+		return Collections.synchronizedMap(new LinkedHashMap<>(maxSize, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+				return size() > maxSize;
+			}
+		});
 	}
 
 	/**
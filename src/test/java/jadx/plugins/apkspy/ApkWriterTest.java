@@ -0,0 +1,112 @@
+package jadx.plugins.apkspy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ApkWriterTest {
+
+	@Test
+	void replaceStoredDexTest(@TempDir Path tempDir) throws IOException {
+		final File original = tempDir.resolve("original.apk").toFile();
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(original))) {
+			// odd name length, the data of the stored entry needs padding
+			putEntry(zos, "a.txt", ZipEntry.DEFLATED, "text".getBytes(StandardCharsets.UTF_8));
+			putEntry(zos, "classes.dex", ZipEntry.STORED, "dex\n035\0old".getBytes(StandardCharsets.UTF_8));
+			putEntry(zos, "classes2.dex", ZipEntry.DEFLATED, "dex\n035\0two".getBytes(StandardCharsets.UTF_8));
+		}
+
+		final byte[] dex = "dex\n035\0replaced stored dex".getBytes(StandardCharsets.UTF_8);
+		final byte[] dex2 = "dex\n035\0replaced deflated dex".getBytes(StandardCharsets.UTF_8);
+		final Map<String, byte[]> replaced = new HashMap<>();
+		replaced.put("classes.dex", dex);
+		replaced.put("classes2.dex", dex2);
+		final File output = tempDir.resolve("output.apk").toFile();
+		ApkWriter.write(original, replaced, output);
+
+		try (ZipFile zip = new ZipFile(output)) {
+			final ZipEntry entry = zip.getEntry("classes.dex");
+			Assertions.assertEquals(ZipEntry.STORED, entry.getMethod());
+			Assertions.assertArrayEquals(dex, readEntry(zip, entry));
+			Assertions.assertEquals(ZipEntry.DEFLATED, zip.getEntry("classes2.dex").getMethod());
+			Assertions.assertArrayEquals(dex2, readEntry(zip, zip.getEntry("classes2.dex")));
+			Assertions.assertArrayEquals("text".getBytes(StandardCharsets.UTF_8), readEntry(zip, zip.getEntry("a.txt")));
+		}
+		// uncompressed data is aligned to 4 bytes
+		final byte[] written = Files.readAllBytes(output.toPath());
+		Assertions.assertEquals(0, indexOf(written, dex) % 4);
+	}
+
+	@Test
+	void addDexTest(@TempDir Path tempDir) throws IOException {
+		final File original = tempDir.resolve("original.apk").toFile();
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(original))) {
+			putEntry(zos, "classes.dex", ZipEntry.STORED, "dex\n035\0one".getBytes(StandardCharsets.UTF_8));
+			putEntry(zos, "res/raw/a.txt", ZipEntry.DEFLATED, "text".getBytes(StandardCharsets.UTF_8));
+		}
+
+		final byte[] dex = "dex\n035\0added dex".getBytes(StandardCharsets.UTF_8);
+		final File output = tempDir.resolve("output.apk").toFile();
+		ApkWriter.write(original, Collections.singletonMap("classes2.dex", dex), output);
+
+		try (ZipFile zip = new ZipFile(output)) {
+			Assertions.assertEquals(3, zip.size());
+			final ZipEntry entry = zip.getEntry("classes2.dex");
+			// stored like the other dex files
+			Assertions.assertEquals(ZipEntry.STORED, entry.getMethod());
+			Assertions.assertArrayEquals(dex, readEntry(zip, entry));
+			Assertions.assertArrayEquals("dex\n035\0one".getBytes(StandardCharsets.UTF_8), readEntry(zip, zip.getEntry("classes.dex")));
+		}
+		final byte[] written = Files.readAllBytes(output.toPath());
+		Assertions.assertEquals(0, indexOf(written, dex) % 4);
+	}
+
+	private static void putEntry(ZipOutputStream zos, String name, int method, byte[] content) throws IOException {
+		final ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(method);
+		if (method == ZipEntry.STORED) {
+			final CRC32 crc = new CRC32();
+			crc.update(content);
+			entry.setSize(content.length);
+			entry.setCompressedSize(content.length);
+			entry.setCrc(crc.getValue());
+		}
+		zos.putNextEntry(entry);
+		zos.write(content);
+		zos.closeEntry();
+	}
+
+	private static byte[] readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+		try (InputStream in = zip.getInputStream(entry)) {
+			return in.readAllBytes();
+		}
+	}
+
+	private static int indexOf(byte[] data, byte[] part) {
+		for (int i = 0; i <= data.length - part.length; i++) {
+			int j = 0;
+			while (j < part.length && data[i + j] == part[j]) {
+				j++;
+			}
+			if (j == part.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
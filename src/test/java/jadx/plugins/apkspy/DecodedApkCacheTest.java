@@ -0,0 +1,26 @@
+package jadx.plugins.apkspy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DecodedApkCacheTest {
+
+	@Test
+	void codeOnlyMergeSkipsResourcesTest(@TempDir Path tempDir) throws IOException {
+		final ApkSpyOptions options = new ApkSpyOptions();
+		options.setOptions(Collections.singletonMap(ApkSpyPlugin.PLUGIN_ID + ".merge.codeOnlyRebuild", "true"));
+		Assertions.assertTrue(options.isCodeOnlyRebuild());
+
+		final Path apk = Files.write(tempDir.resolve("app.apk"), new byte[] { 1, 2, 3 });
+		final String key = DecodedApkCache.getCacheKey(apk, ApkSpy.SKIP_ORIGINAL_RESOURCES);
+		Assertions.assertTrue(key.contains("-nores-"), key);
+		Assertions.assertNotEquals(DecodedApkCache.getCacheKey(apk, false), key);
+		Assertions.assertEquals(key, DecodedApkCache.getCacheKey(apk, true));
+	}
+}
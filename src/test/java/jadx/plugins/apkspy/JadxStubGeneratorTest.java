@@ -0,0 +1,95 @@
+package jadx.plugins.apkspy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Opcodes;
+
+import jadx.api.JadxArgs;
+import jadx.api.JadxDecompiler;
+import jadx.core.dex.nodes.ClassNode;
+import jadx.plugins.apkspy.model.SmaliSourceTest;
+
+public class JadxStubGeneratorTest extends SmaliSourceTest {
+
+	@Test
+	void generateClassAttributesTest() throws Exception {
+		final JadxArgs args = new JadxArgs();
+		args.getInputFiles().add(getSampleFile("stubs/Outer.smali"));
+		args.getInputFiles().add(getSampleFile("stubs/Outer$Color.smali"));
+		args.getInputFiles().add(getSampleFile("stubs/Outer$Listener.smali"));
+		try (final JadxDecompiler jadx = new JadxDecompiler(args)) {
+			jadx.load();
+			final JadxStubGenerator generator = new JadxStubGenerator(jadx.getRoot());
+
+			final StubClass outer = read(generator, findClass(jadx, "jadx/apkspy/stubs/Outer"));
+			Assertions.assertEquals("<T:Ljava/lang/Object;>Ljava/lang/Object;", outer.signature);
+			Assertions.assertEquals(42, outer.constants.get("LIMIT"));
+			Assertions.assertEquals("outer", outer.constants.get("NAME"));
+			Assertions.assertEquals("Ljava/util/List<TT;>;", outer.fieldSignatures.get("items"));
+			Assertions.assertTrue((outer.innerClasses.get("jadx/apkspy/stubs/Outer$Color") & Opcodes.ACC_ENUM) != 0);
+			Assertions.assertTrue((outer.innerClasses.get("jadx/apkspy/stubs/Outer$Listener") & Opcodes.ACC_INTERFACE) != 0);
+
+			final StubClass color = read(generator, findClass(jadx, "jadx/apkspy/stubs/Outer$Color"));
+			Assertions.assertEquals(Opcodes.ACC_ENUM | Opcodes.ACC_FINAL | Opcodes.ACC_PUBLIC,
+					color.access & (Opcodes.ACC_ENUM | Opcodes.ACC_FINAL | Opcodes.ACC_PUBLIC));
+			Assertions.assertEquals("Ljava/lang/Enum<Ljadx/apkspy/stubs/Outer$Color;>;", color.signature);
+			Assertions.assertTrue(color.innerClasses.containsKey("jadx/apkspy/stubs/Outer$Color"));
+
+			final StubClass listener = read(generator, findClass(jadx, "jadx/apkspy/stubs/Outer$Listener"));
+			Assertions.assertEquals(Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT,
+					listener.access & (Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT));
+			Assertions.assertEquals(0, listener.access & Opcodes.ACC_SUPER);
+		}
+	}
+
+	private static ClassNode findClass(JadxDecompiler jadx, String internalName) {
+		for (ClassNode cls : jadx.getRoot().getClasses()) {
+			if (JadxStubGenerator.getRawInternalName(cls).equals(internalName)) {
+				return cls;
+			}
+		}
+		throw new AssertionError("Class not loaded: " + internalName);
+	}
+
+	private static StubClass read(JadxStubGenerator generator, ClassNode cls) {
+		StubClass stub = new StubClass();
+		new ClassReader(generator.generateClass(cls)).accept(new ClassVisitor(Opcodes.ASM9) {
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				stub.access = access;
+				stub.signature = signature;
+			}
+
+			@Override
+			public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+				if (value != null) {
+					stub.constants.put(name, value);
+				}
+				if (signature != null) {
+					stub.fieldSignatures.put(name, signature);
+				}
+				return null;
+			}
+
+			@Override
+			public void visitInnerClass(String name, String outerName, String innerName, int access) {
+				stub.innerClasses.put(name, access);
+			}
+		}, ClassReader.SKIP_CODE);
+		return stub;
+	}
+
+	private static final class StubClass {
+		private int access;
+		private String signature;
+		private final Map<String, Object> constants = new HashMap<>();
+		private final Map<String, String> fieldSignatures = new HashMap<>();
+		private final Map<String, Integer> innerClasses = new HashMap<>();
+	}
+}
@@ -4,10 +4,17 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -15,6 +22,8 @@ import org.junit.jupiter.api.io.TempDir;
 
 import jadx.api.JadxArgs;
 import jadx.api.JadxDecompiler;
+import jadx.plugins.apkspy.ApkSpyOptions;
+import jadx.plugins.apkspy.ApkSpyPlugin;
 import jadx.plugins.apkspy.JarGenerator;
 import jadx.plugins.apkspy.model.ClassBreakdown;
 
@@ -62,10 +71,15 @@ public class JarGeneratorTest {
 				apkFile.getFile(), jarGenTestFolder.getAbsolutePath());
 		final File outputJar = new File(jarGenTestFolder, "beige-uml-android-2.1.11-aligned.jar");
 
+		// dex2jar generator, its temporary stub.jar must be removed afterwards
+		final ApkSpyOptions options = new ApkSpyOptions();
+		options.setOptions(Collections.singletonMap(ApkSpyPlugin.PLUGIN_ID + ".stubs.fromJadxModel", "false"));
+		Assertions.assertFalse(options.isStubsFromJadxModel());
+
 		// no excluded classes
 		try {
 			JarGenerator.generateStubJar(new File(apkFile.toURI()), outputJar, System.out, new HashMap<>(), decompiler,
-					jarGenTestFolder.toPath());
+					jarGenTestFolder.toPath(), null, options);
 		} catch (final URISyntaxException | IOException e) {
 			Assertions.fail(e);
 		}
@@ -80,7 +94,8 @@ public class JarGeneratorTest {
 		try {
 			HashMap<String, ClassBreakdown> classes = new HashMap<>();
 			classes.put("org.beigesoft.ui.container.ContainerGuiSrvs", new ClassBreakdown("", "", "", "", "", null, null));
-			JarGenerator.generateStubJar(new File(apkFile.toURI()), outputJar, System.out, classes, decompiler, jarGenTestFolder.toPath());
+			JarGenerator.generateStubJar(new File(apkFile.toURI()), outputJar, System.out, classes, decompiler, jarGenTestFolder.toPath(),
+					null, options);
 		} catch (final URISyntaxException | IOException e) {
 			Assertions.fail(e);
 		}
@@ -89,4 +104,36 @@ public class JarGeneratorTest {
 		Assertions.assertFalse(new File(jarGenTestFolder, "stub.jar").exists());
 		Assertions.assertTrue(checkFileNotJar(outputJar, "org/beigesoft/p003ui/container/ContainerGuiSrvs.class"));
 	}
+
+	@Test
+	void cachedStubJarTest() throws Exception {
+		URL apkFile = getClass().getClassLoader().getResource("beige-uml-android-2.1.11-aligned.apk");
+
+		final JadxDecompiler decompiler = decompile(
+				apkFile.getFile(), jarGenTestFolder.getAbsolutePath());
+		final File outputJar = new File(jarGenTestFolder, "beige-uml-android-2.1.11-aligned.jar");
+		final Path cacheDir = jarGenTestFolder.toPath().resolve("stub-cache");
+
+		JarGenerator.generateStubJar(new File(apkFile.toURI()), outputJar, System.out, new HashMap<>(), decompiler,
+				jarGenTestFolder.toPath(), cacheDir, new ApkSpyOptions());
+		Assertions.assertFalse(checkFileNotJar(outputJar, "org/beigesoft/p003ui/container/ContainerGuiSrvs.class"));
+		List<Path> cachedJars;
+		try (Stream<Path> files = Files.list(cacheDir)) {
+			cachedJars = files.collect(Collectors.toList());
+		}
+		Assertions.assertEquals(1, cachedJars.size());
+		FileTime cachedTime = Files.getLastModifiedTime(cachedJars.get(0));
+
+		// second run reuses cached jar and only filters excluded classes
+		HashMap<String, ClassBreakdown> classes = new HashMap<>();
+		classes.put("org.beigesoft.ui.container.ContainerGuiSrvs", new ClassBreakdown("", "", "", "", "", null, null));
+		JarGenerator.generateStubJar(new File(apkFile.toURI()), outputJar, System.out, classes, decompiler,
+				jarGenTestFolder.toPath(), cacheDir, new ApkSpyOptions());
+		Assertions.assertTrue(checkFileNotJar(outputJar, "org/beigesoft/p003ui/container/ContainerGuiSrvs.class"));
+		Assertions.assertTrue(Files.isRegularFile(cachedJars.get(0)));
+		Assertions.assertTrue(Files.getLastModifiedTime(cachedJars.get(0)).compareTo(cachedTime) >= 0);
+		try (Stream<Path> files = Files.list(cacheDir)) {
+			Assertions.assertEquals(1, files.count());
+		}
+	}
 }
@@ -0,0 +1,40 @@
+package jadx.plugins.apkspy;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import jadx.api.JadxArgs;
+import jadx.api.JadxDecompiler;
+import jadx.plugins.apkspy.model.ClassBreakdown;
+import jadx.plugins.apkspy.model.SmaliSourceTest;
+
+public class StubClosureTest extends SmaliSourceTest {
+
+	@Test
+	void typeParameterBoundsTest() throws Exception {
+		final JadxArgs args = new JadxArgs();
+		args.getInputFiles().add(getSampleFile("closure/Bounded.smali"));
+		args.getInputFiles().add(getSampleFile("closure/ClassBound.smali"));
+		args.getInputFiles().add(getSampleFile("closure/MethodBound.smali"));
+		args.getInputFiles().add(getSampleFile("closure/Unused.smali"));
+		try (final JadxDecompiler jadx = new JadxDecompiler(args)) {
+			jadx.load();
+			final String code = "package jadx.apkspy.closure;\n" +
+					"\n" +
+					"public class Edited {\n" +
+					"    public void edit(Bounded<?> bounded) {\n" +
+					"    }\n" +
+					"}\n";
+			final ClassBreakdown source = ClassBreakdown.breakdown("jadx.apkspy.closure.Edited", "Edited", code);
+
+			final Set<String> closure = StubClosure.compute(jadx.getRoot(), Collections.singletonList(source));
+			Assertions.assertTrue(closure.contains("jadx/apkspy/closure/Bounded"), closure.toString());
+			Assertions.assertTrue(closure.contains("jadx/apkspy/closure/ClassBound"), closure.toString());
+			Assertions.assertTrue(closure.contains("jadx/apkspy/closure/MethodBound"), closure.toString());
+			Assertions.assertFalse(closure.contains("jadx/apkspy/closure/Unused"), closure.toString());
+		}
+	}
+}
@@ -4,6 +4,8 @@ import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import com.github.javaparser.ParseProblemException;
+
 import jadx.plugins.apkspy.utils.Util;
 
 public class ClassBreakdownTest {
@@ -326,4 +328,133 @@ public class ClassBreakdownTest {
 		final ClassBreakdown original = ClassBreakdown.breakdown("jadx.plugin.apkspy.test.TestActivity", "TestActivity", originalCode);
 		Assertions.assertEquals(1, StringUtils.countMatches(original.asStub().toString(), "@Override"));
 	}
+
+	@Test
+	void nestedInnerClassesTest() {
+		final String originalCode = "package jadx.plugin.apkspy.test;\r\n" +
+				"\r\n" +
+				"public class TestClass {\r\n" +
+				"    public static class Inner {\r\n" +
+				"        int value;\r\n" +
+				"\r\n" +
+				"        private class Deep {\r\n" +
+				"            void deep() {\r\n" +
+				"            }\r\n" +
+				"        }\r\n" +
+				"\r\n" +
+				"        public void run() {\r\n" +
+				"            value++;  \r\n" +
+				"        }\r\n" +
+				"    }\r\n" +
+				"\r\n" +
+				"    void method() {\r\n" +
+				"    }\r\n" +
+				"}";
+		final ClassBreakdown original = ClassBreakdown.breakdown("jadx.plugin.apkspy.test.TestClass", "TestClass", originalCode);
+		Assertions.assertEquals(1, original.getMethods().size());
+		Assertions.assertEquals(1, original.getInnerClasses().size());
+
+		final ClassBreakdown inner = original.getInnerClasses().get(0);
+		Assertions.assertEquals("Inner", inner.getSimpleName());
+		Assertions.assertEquals("int value;\n", inner.getMemberVariables());
+		Assertions.assertEquals("public void run() {\n    value++;\n}", inner.getMethods().get(0).toString());
+
+		final ClassBreakdown deep = inner.getInnerClasses().get(0);
+		Assertions.assertEquals("private class Deep", deep.getClassDeclaration());
+		Assertions.assertEquals("void deep() {", deep.getMethods().get(0).getHeader());
+	}
+
+	@Test
+	void breakdownFromCompilationUnitTest() {
+		final String code = "package jadx.plugin.apkspy.test;\n" +
+				"import java.util.List;\n" +
+				"/* JADX INFO: loaded from: classes.dex */\n" +
+				"public class TestClass extends Base implements Runnable {\n" +
+				"  private final int value; static int counter = 1;\n" +
+				"  static { counter = 2; }\n" +
+				"  Runnable task = new Runnable() { public void run() { counter++; } };\n" +
+				"  public TestClass() { value = 1; }\n" +
+				"  // line comment\n" +
+				"  @Override\n" +
+				"  public void run() {\n" +
+				"    int y = 0;\n" +
+				"\n" +
+				"    y++;\n" +
+				"  }\n" +
+				"  public static class Inner { int g; void m() {} class Deep { void d() {} } }\n" +
+				"  interface Callback { void on(); }\n" +
+				"}\n";
+		assertSameBreakdown(code);
+	}
+
+	@Test
+	void breakdownFromCompilationUnitDeclarationTest() {
+		final String code = "package jadx.plugin.apkspy.test;\n" +
+				"import java.util.Map;\n" +
+				"@Deprecated\n" +
+				"@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n" +
+				"public abstract class TestClass<T extends Comparable<? super T>, U extends Map<String, T>> " +
+				"extends Base<T> implements Comparable<TestClass<T, U>> {\n" +
+				"  protected abstract T get(U u);\n" +
+				"  public <V extends T> V cast(T t) { return (V) t; }\n" +
+				"  enum Mode { ON, OFF; Mode next() { return OFF; } }\n" +
+				"  @interface Marker { String value() default \"\"; }\n" +
+				"}\n";
+		final ClassBreakdown parsed = assertSameBreakdown(code);
+		Assertions.assertEquals("public abstract class TestClass<T extends Comparable<? super T>, U extends Map<String, T>> "
+				+ "extends Base<T> implements Comparable<TestClass<T, U>>", parsed.getClassDeclaration());
+		Assertions.assertTrue(parsed.getImports().contains("@Deprecated"));
+		Assertions.assertTrue(parsed.getMemberVariables().contains("protected abstract T get(U u);"));
+	}
+
+	@Test
+	void breakdownFromCompilationUnitInterfaceTest() {
+		final String code = "package jadx.plugin.apkspy.test;\n" +
+				"public interface TestInterface<T> extends Runnable {\n" +
+				"  int LIMIT = 2;\n" +
+				"  void accept(T t);\n" +
+				"  default void run() { accept(null); }\n" +
+				"  static <T> TestInterface<T> empty() { return t -> { }; }\n" +
+				"}\n";
+		final ClassBreakdown parsed = assertSameBreakdown(code);
+		Assertions.assertTrue(parsed.getMemberVariables().contains("void accept(T t);"));
+	}
+
+	@Test
+	void breakdownFromCompilationUnitFallbackTest() {
+		final String code = "package jadx.plugin.apkspy.test;\n" +
+				"/* loaded from: classes.dex */\n" +
+				"public enum TestEnum {\n" +
+				"  A, B;\n" +
+				"  int code() { return ordinal(); }\n" +
+				"}\n";
+		assertSameBreakdown(code);
+	}
+
+	@Test
+	void parseSourcesCacheTest() {
+		final String code = "package jadx.plugin.apkspy.test;\n" +
+				"public class TestClass {\n" +
+				"  void run() {}\n" +
+				"}\n";
+		Assertions.assertSame(Util.parseSources(code), Util.parseSources(code));
+		Assertions.assertNotSame(Util.parseSources(code), Util.parseSources(code + "\n"));
+
+		final String invalid = "public class TestClass {\n  void run() {\n}\n";
+		Assertions.assertThrows(ParseProblemException.class, () -> Util.parseSources(invalid));
+		Assertions.assertThrows(ParseProblemException.class, () -> Util.parseSources(invalid));
+	}
+
+	private static ClassBreakdown assertSameBreakdown(String code) {
+		final ClassBreakdown formatted = ClassBreakdown.breakdown("jadx.plugin.apkspy.test.TestClass", null, Util.formatSources(code));
+		final ClassBreakdown parsed = ClassBreakdown.breakdown("jadx.plugin.apkspy.test.TestClass", null, Util.parseSources(code));
+
+		Assertions.assertEquals(formatted.getImports(), parsed.getImports());
+		Assertions.assertEquals(formatted.getClassDeclaration(), parsed.getClassDeclaration());
+		Assertions.assertEquals(formatted.getMemberVariables(), parsed.getMemberVariables());
+		Assertions.assertEquals(formatted.getMethods().size(), parsed.getMethods().size());
+		Assertions.assertEquals(formatted.getInnerClasses().size(), parsed.getInnerClasses().size());
+		Assertions.assertEquals(formatted.toString(), parsed.toString());
+		return parsed;
+	}
 }
@@ -81,4 +81,35 @@ public class MethodExtractorUtilsTest extends SmaliSourceTest {
 		Assertions.assertNotNull(method);
 		Assertions.assertTrue(method.contains("    // This is a user generated comment 2\n    @Deprecated\n    @Override\n"));
 	}
+
+	@Test
+	void extractMethodBetweenMembersTest() {
+		String code = "package jadx.plugins.apkspy;\n"
+				+ "\n"
+				+ "public class MembersTest {\n"
+				+ "    private int value;\n"
+				+ "\n"
+				+ "    public void first() {\n"
+				+ "        if (value > 0) {\n"
+				+ "            value--;\n"
+				+ "        }\n"
+				+ "    }\n"
+				+ "\n"
+				+ "    public void second() {\n"
+				+ "        value++;\n"
+				+ "    }\n"
+				+ "}";
+
+		Assertions.assertNull(MethodExtractorUtils.extractMethod(code, code.indexOf("private int")));
+		String method = MethodExtractorUtils.extractMethod(code, code.indexOf("value++"));
+		Assertions.assertEquals("package jadx.plugins.apkspy;\n"
+				+ "\n"
+				+ "\n"
+				+ "public class MembersTest {\n"
+				+ "    public void second() {\n"
+				+ "        value++;\n"
+				+ "    }\n"
+				+ "}\n", method);
+		Assertions.assertTrue(MethodExtractorUtils.extractMethod(code, code.indexOf("value--")).contains("public void first() {"));
+	}
 }
@@ -84,16 +84,7 @@ public class SmaliBreakdownTest {
 
 		List<SmaliMethod> methods = modifiedSmali.getChangedMethods(relative);
 
-		StringBuilder builder = new StringBuilder(originalContent);
-		for (SmaliMethod method : methods) {
-			SmaliBreakdown originalSmali = SmaliBreakdown.breakdown(builder.toString());
-			SmaliMethod equivalentMethod = originalSmali.getEquivalentMethod(method);
-
-			if (equivalentMethod != null) {
-				builder.delete(equivalentMethod.getStart(), equivalentMethod.getEnd());
-				builder.insert(equivalentMethod.getStart(), method.getContent());
-			}
-		}
+		String merged = SmaliSplicer.splice(originalContent, methods);
 
 		Assertions.assertEquals(".class public Lapkspy/test/b/a;\n" +
 				".super Ljava/lang/Object;\n" +
@@ -116,6 +107,70 @@ public class SmaliBreakdownTest {
 				"\n" +
 				"    return-object v0\n" +
 				".end method\n" +
-				"\n", builder.toString());
+				"\n", merged);
+	}
+
+	@Test
+	void spliceMultipleMethodsTest() {
+		String original = ".class public La;\n" +
+				".super Ljava/lang/Object;\n" +
+				"\n" +
+				".method public a()V\n" +
+				"    return-void\n" +
+				".end method\n" +
+				"\n" +
+				".method public b()I\n" +
+				"    const/4 v0, 0x0\n" +
+				"    return v0\n" +
+				".end method\n" +
+				"\n" +
+				".method public c()V\n" +
+				"    return-void\n" +
+				".end method\n";
+
+		List<SmaliMethod> methods = List.of(
+				new SmaliMethod(0, 0, ".method public c()V\n    nop\n    return-void\n.end method"),
+				new SmaliMethod(0, 0, ".method public d()V\n    return-void\n.end method"),
+				new SmaliMethod(0, 0, ".method public a()V\n    nop\n    return-void\n.end method"));
+
+		Assertions.assertEquals(".class public La;\n" +
+				".super Ljava/lang/Object;\n" +
+				"\n" +
+				".method public a()V\n" +
+				"    nop\n" +
+				"    return-void\n" +
+				".end method\n" +
+				"\n" +
+				".method public b()I\n" +
+				"    const/4 v0, 0x0\n" +
+				"    return v0\n" +
+				".end method\n" +
+				"\n" +
+				".method public c()V\n" +
+				"    nop\n" +
+				"    return-void\n" +
+				".end method\n", SmaliSplicer.splice(original, methods));
+	}
+
+	@Test
+	void breakdownMethodViewsTest() {
+		String content = ".class public Lapkspy/test/A;\r\n" +
+				".super Ljava/lang/Object;\r\n" +
+				"\r\n" +
+				".method public a(I)V  \r\n" +
+				"    return-void\r\n" +
+				".end method\r\n";
+
+		SmaliBreakdown breakdown = SmaliBreakdown.breakdown(content);
+		Assertions.assertEquals("apkspy.test.A", breakdown.getClassName());
+		Assertions.assertEquals(1, breakdown.getMethods().size());
+
+		SmaliMethod method = breakdown.getMethods().get(0);
+		Assertions.assertEquals(".method public a(I)V", method.getDeclaration());
+		Assertions.assertEquals(".method public a(I)V\n    return-void\n.end method\n", method.getContent());
+		Assertions.assertEquals(content.indexOf(".method"), method.getStart());
+		Assertions.assertEquals(content.lastIndexOf('\n'), method.getEnd());
+		Assertions.assertEquals(method,
+				breakdown.getEquivalentMethod(new SmaliMethod(0, 0, ".method public a(I)V\n    nop\n.end method\n")));
 	}
 }